@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.zmtp;
+
+import com.spotify.netty.handler.codec.zmtp.ZMTPBatchingEncoder;
+import com.spotify.netty.handler.codec.zmtp.ZMTPConnectionType;
+import com.spotify.netty.handler.codec.zmtp.ZMTPFramingEncoder;
+import com.spotify.netty.handler.codec.zmtp.ZMTPMessage;
+import com.spotify.netty.handler.codec.zmtp.ZMTPSession;
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures batched writes of messages through a {@link ZMTPFramingEncoder} followed by an {@link
+ * AutoFlushingWriteBatcher}, and through a {@link ZMTPBatchingEncoder}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatcherBenchmark {
+
+  private static final int BATCH = 100;
+
+  @Param({"16", "1024"})
+  public int frameSize;
+
+  @Param({"1", "4"})
+  public int frames;
+
+  @Param({"true", "false"})
+  public boolean enveloped;
+
+  @Param({"batcher", "batchingEncoder"})
+  public String handler;
+
+  private ZMTPMessage message;
+  private EncoderEmbedder<ChannelBuffer> embedder;
+
+  @Setup
+  public void setup() {
+    message = Messages.message(frames, frameSize);
+    final ZMTPSession session = new ZMTPSession(
+        enveloped ? ZMTPConnectionType.Addressed : ZMTPConnectionType.Neutral);
+    if (handler.equals("batcher")) {
+      embedder = new EncoderEmbedder<ChannelBuffer>(
+          new AutoFlushingWriteBatcher(), new ZMTPFramingEncoder(session));
+    } else {
+      embedder = new EncoderEmbedder<ChannelBuffer>(new ZMTPBatchingEncoder(session));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    embedder.finish();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public int write() {
+    for (int i = 0; i < BATCH; i++) {
+      embedder.offer(message);
+    }
+    int bytes = 0;
+    ChannelBuffer buffer;
+    while ((buffer = embedder.poll()) != null) {
+      bytes += buffer.readableBytes();
+    }
+    return bytes;
+  }
+}
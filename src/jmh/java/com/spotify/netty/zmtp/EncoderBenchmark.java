@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.zmtp;
+
+import com.spotify.netty.handler.codec.zmtp.ZMTPConnectionType;
+import com.spotify.netty.handler.codec.zmtp.ZMTPFramingEncoder;
+import com.spotify.netty.handler.codec.zmtp.ZMTPMessage;
+import com.spotify.netty.handler.codec.zmtp.ZMTPSession;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ZMTPFramingEncoder} over an embedded channel, copying or wrapping frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark {
+
+  @Param({"16", "1024", "65536"})
+  public int frameSize;
+
+  @Param({"1", "4"})
+  public int frames;
+
+  @Param({"true", "false"})
+  public boolean enveloped;
+
+  @Param({"false", "true"})
+  public boolean wrapFrames;
+
+  private ZMTPMessage message;
+  private EncoderEmbedder<ChannelBuffer> embedder;
+
+  @Setup
+  public void setup() {
+    message = Messages.message(frames, frameSize);
+    final ZMTPSession session = new ZMTPSession(
+        enveloped ? ZMTPConnectionType.Addressed : ZMTPConnectionType.Neutral);
+    embedder = new EncoderEmbedder<ChannelBuffer>(new ZMTPFramingEncoder(session, wrapFrames));
+  }
+
+  @Benchmark
+  public ChannelBuffer encode() {
+    embedder.offer(message);
+    return embedder.poll();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.zmtp;
+
+import com.spotify.netty.handler.codec.zmtp.ZMTPConnectionType;
+import com.spotify.netty.handler.codec.zmtp.ZMTPFrame;
+import com.spotify.netty.handler.codec.zmtp.ZMTPFramingDecoder;
+import com.spotify.netty.handler.codec.zmtp.ZMTPSession;
+import com.spotify.netty.handler.codec.zmtp.ZMTPUtils;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures connection setup: creating a session and decoder, sending our identity and handling
+ * the identity of the remote peer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+
+  private ChannelBuffer identity;
+
+  @Setup
+  public void setup() {
+    identity = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeFrame(ZMTPFrame.create("remote"), identity, false);
+  }
+
+  @Benchmark
+  public Object handshake() {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Addressed, "local".getBytes());
+    final DecoderEmbedder<Object> decoder =
+        new DecoderEmbedder<Object>(new ZMTPFramingDecoder(session));
+    decoder.offer(identity.duplicate());
+    return decoder.pollAll();
+  }
+}
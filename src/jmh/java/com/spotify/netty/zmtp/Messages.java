@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.zmtp;
+
+import com.spotify.netty.handler.codec.zmtp.ZMTPFrame;
+import com.spotify.netty.handler.codec.zmtp.ZMTPMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test messages shared by the benchmarks.
+ */
+class Messages {
+
+  private Messages() {
+  }
+
+  /**
+   * Create a message with two envelope frames and a number of content frames of equal size.
+   */
+  static ZMTPMessage message(final int frames, final int frameSize) {
+    final List<ZMTPFrame> envelope = new ArrayList<ZMTPFrame>();
+    envelope.add(ZMTPFrame.create("first identity frame"));
+    envelope.add(ZMTPFrame.create("second identity frame"));
+
+    final List<ZMTPFrame> content = new ArrayList<ZMTPFrame>();
+    for (int i = 0; i < frames; i++) {
+      final byte[] data = new byte[frameSize];
+      for (int j = 0; j < frameSize; j++) {
+        data[j] = (byte) j;
+      }
+      content.add(ZMTPFrame.create(data));
+    }
+
+    return new ZMTPMessage(envelope, content);
+  }
+}
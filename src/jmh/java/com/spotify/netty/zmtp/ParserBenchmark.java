@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.zmtp;
+
+import com.spotify.netty.handler.codec.zmtp.ZMTPMessage;
+import com.spotify.netty.handler.codec.zmtp.ZMTPMessageParser;
+import com.spotify.netty.handler.codec.zmtp.ZMTPRevision;
+import com.spotify.netty.handler.codec.zmtp.ZMTPUtils;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ZMTPMessageParser#parse} of a complete serialized message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+  @Param({"16", "1024", "65536"})
+  public int frameSize;
+
+  @Param({"1", "4"})
+  public int frames;
+
+  @Param({"true", "false"})
+  public boolean enveloped;
+
+  @Param({"ZMTP_10", "ZMTP_30"})
+  public ZMTPRevision revision;
+
+  private ChannelBuffer serialized;
+  private ZMTPMessageParser parser;
+
+  @Setup
+  public void setup() {
+    final ZMTPMessage message = Messages.message(frames, frameSize);
+    serialized = ChannelBuffers.buffer(ZMTPUtils.messageSize(message, enveloped, revision));
+    ZMTPUtils.writeMessage(message, serialized, enveloped, revision);
+    parser = new ZMTPMessageParser(enveloped, revision);
+  }
+
+  @Benchmark
+  public ZMTPMessage parse() {
+    return parser.parse(serialized.duplicate());
+  }
+}
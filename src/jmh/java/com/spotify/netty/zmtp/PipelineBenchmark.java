@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.zmtp;
+
+import com.spotify.netty.handler.codec.zmtp.ZMTPConnectionType;
+import com.spotify.netty.handler.codec.zmtp.ZMTPFrame;
+import com.spotify.netty.handler.codec.zmtp.ZMTPFramingDecoder;
+import com.spotify.netty.handler.codec.zmtp.ZMTPFramingEncoder;
+import com.spotify.netty.handler.codec.zmtp.ZMTPMessage;
+import com.spotify.netty.handler.codec.zmtp.ZMTPSession;
+import com.spotify.netty.handler.codec.zmtp.ZMTPUtils;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full round trip of a message from a {@link ZMTPFramingEncoder} through a
+ * {@link ZMTPFramingDecoder}, over embedded channels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+  @Param({"16", "1024", "65536"})
+  public int frameSize;
+
+  @Param({"1", "4"})
+  public int frames;
+
+  @Param({"true", "false"})
+  public boolean enveloped;
+
+  private ZMTPMessage message;
+  private EncoderEmbedder<ChannelBuffer> encoder;
+  private DecoderEmbedder<Object> decoder;
+
+  @Setup
+  public void setup() {
+    message = Messages.message(frames, frameSize);
+    final ZMTPConnectionType type =
+        enveloped ? ZMTPConnectionType.Addressed : ZMTPConnectionType.Neutral;
+    encoder = new EncoderEmbedder<ChannelBuffer>(new ZMTPFramingEncoder(new ZMTPSession(type)));
+    decoder = new DecoderEmbedder<Object>(new ZMTPFramingDecoder(new ZMTPSession(type)));
+
+    // Complete the handshake, discarding the identity sent by the decoder
+    final ChannelBuffer identity = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeFrame(ZMTPFrame.create("remote"), identity, false);
+    decoder.offer(identity);
+    decoder.pollAll();
+  }
+
+  @Benchmark
+  public Object roundTrip() {
+    encoder.offer(message);
+    decoder.offer(encoder.poll());
+    return decoder.poll();
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.zmtp;
+
+import com.spotify.netty.handler.codec.zmtp.ZMTPMessage;
+import com.spotify.netty.handler.codec.zmtp.ZMTPRevision;
+import com.spotify.netty.handler.codec.zmtp.ZMTPUtils;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ZMTPUtils#writeMessage} into a preallocated buffer, and into a newly allocated
+ * buffer as done by the framing encoder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteMessageBenchmark {
+
+  @Param({"16", "1024", "65536"})
+  public int frameSize;
+
+  @Param({"1", "4"})
+  public int frames;
+
+  @Param({"true", "false"})
+  public boolean enveloped;
+
+  @Param({"ZMTP_10", "ZMTP_30"})
+  public ZMTPRevision revision;
+
+  private ZMTPMessage message;
+  private ChannelBuffer buffer;
+
+  @Setup
+  public void setup() {
+    message = Messages.message(frames, frameSize);
+    buffer = ChannelBuffers.buffer(ZMTPUtils.messageSize(message, enveloped, revision));
+  }
+
+  @Benchmark
+  public ChannelBuffer writeMessage() {
+    buffer.clear();
+    ZMTPUtils.writeMessage(message, buffer, enveloped, revision);
+    return buffer;
+  }
+
+  @Benchmark
+  public ChannelBuffer allocateAndWriteMessage() {
+    final ChannelBuffer buffer =
+        ChannelBuffers.buffer(ZMTPUtils.messageSize(message, enveloped, revision));
+    ZMTPUtils.writeMessage(message, buffer, enveloped, revision);
+    return buffer;
+  }
+}
@@ -4,6 +4,7 @@ import java.net.SocketAddress;
 import java.util.UUID;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jetbrains.annotations.Nullable;
 
 public abstract class AbstractZMTPSession {
@@ -12,6 +13,9 @@ public abstract class AbstractZMTPSession {
 	protected final byte[] localIdent;
 	private Channel channel;
 	private byte[] remoteIdent;
+	private volatile ChannelFuture handshakeFuture;
+	private ZMTPPendingWrites pendingWrites;
+	private boolean revisionAgreed;
 
 	public AbstractZMTPSession(@Nullable final byte[] localIdent) {
 		this.useLocalIdentity = (localIdent != null);
@@ -32,6 +36,14 @@ public abstract class AbstractZMTPSession {
 	 */
 	public abstract ZMTPRevision getRevision();
 
+	/**
+	 * @return true if the revision, and thereby the framing of messages, is
+	 *         negotiated with the remote peer during the handshake.
+	 */
+	public boolean negotiatesRevision() {
+		return false;
+	}
+
 	/**
 	 * @return The local address of the session
 	 */
@@ -93,4 +105,48 @@ public abstract class AbstractZMTPSession {
 		this.channel = channel;
 	}
 
+	/**
+	 * @return The future of the handshake with the remote peer, completed
+	 *         once the remote identity is known, or null if the handshake has
+	 *         not started.
+	 */
+	public ChannelFuture getHandshakeFuture() {
+		return handshakeFuture;
+	}
+
+	void setHandshakeFuture(final ChannelFuture handshakeFuture) {
+		this.handshakeFuture = handshakeFuture;
+	}
+
+	/**
+	 * Register the writes of the encoder to release once the revision is
+	 * agreed on.
+	 * 
+	 * @return false if the revision is already agreed on.
+	 */
+	synchronized boolean setPendingWrites(final ZMTPPendingWrites pendingWrites) {
+		if (revisionAgreed) {
+			return false;
+		}
+		this.pendingWrites = pendingWrites;
+		return true;
+	}
+
+	/**
+	 * Called by the decoder when the revision has been agreed on with the
+	 * remote peer, after the part of our handshake that precedes messages has
+	 * been written. Writes the messages held by the encoder.
+	 */
+	void revisionAgreed() {
+		final ZMTPPendingWrites held;
+		synchronized (this) {
+			revisionAgreed = true;
+			held = pendingWrites;
+			pendingWrites = null;
+		}
+		if (held != null) {
+			held.release();
+		}
+	}
+
 }
\ No newline at end of file
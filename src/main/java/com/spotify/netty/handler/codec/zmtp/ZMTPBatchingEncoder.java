@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Netty encoder for ZMTP messages that batches writes like
+ * {@link AutoFlushingWriteBatcher}, but serializes messages straight into a
+ * single outgoing buffer instead of encoding each message into a buffer of its
+ * own and consolidating the buffers when flushing.
+ *
+ * Used in place of both a {@link ZMTPFramingEncoder} and a write batcher.
+ */
+public class ZMTPBatchingEncoder extends AutoFlushingWriteBatcher {
+
+	private final AbstractZMTPSession session;
+	private final ZMTPPendingWrites pendingWrites;
+
+	private ChannelBuffer pending;
+	private List<ChannelFuture> pendingFutures = new ArrayList<ChannelFuture>();
+
+	/**
+	 * Create a batching encoder with default parameters.
+	 */
+	public ZMTPBatchingEncoder(final AbstractZMTPSession session) {
+		this.session = session;
+		this.pendingWrites = new ZMTPPendingWrites(session, releasedWriter());
+	}
+
+	/**
+	 * Create a batching encoder with custom flushing interval, i.e. the
+	 * maximum amount of time between a message being written to the buffer and
+	 * the buffer being flushed.
+	 *
+	 * @param session
+	 *            The session.
+	 * @param interval
+	 *            The flush interval.
+	 * @param intervalUnit
+	 *            The time unit of the flush interval.
+	 */
+	public ZMTPBatchingEncoder(final AbstractZMTPSession session, final long interval, final TimeUnit intervalUnit) {
+		super(interval, intervalUnit);
+		this.session = session;
+		this.pendingWrites = new ZMTPPendingWrites(session, releasedWriter());
+	}
+
+	/**
+	 * Create a batching encoder configured by a write batcher builder. Buffer
+	 * consolidation does not apply.
+	 *
+	 * @param session
+	 *            The session.
+	 * @param builder
+	 *            The builder.
+	 */
+	public ZMTPBatchingEncoder(final AbstractZMTPSession session, final AutoFlushingWriteBatcher.Builder builder) {
+		super(builder);
+		this.session = session;
+		this.pendingWrites = new ZMTPPendingWrites(session, releasedWriter());
+	}
+
+	private ZMTPPendingWrites.Writer releasedWriter() {
+		return new ZMTPPendingWrites.Writer() {
+			@Override
+			public void write(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+				writeRequested(ctx, e);
+			}
+		};
+	}
+
+	/**
+	 * Called when an outgoing message is written to the channel. Messages
+	 * written before the revision used with the remote peer is known are held
+	 * until it is.
+	 */
+	@Override
+	public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+		final Object message = e.getMessage();
+		if (message instanceof ZMTPMessage && pendingWrites.hold(ctx, e)) {
+			return;
+		}
+
+		final int size;
+		synchronized (this) {
+			if (message instanceof ZMTPMessage) {
+				final ZMTPMessage zmtpMessage = (ZMTPMessage) message;
+				final ZMTPRevision revision = session.getRevision();
+				size = ZMTPUtils.messageSize(zmtpMessage, session.isEnveloped(), revision);
+				ZMTPUtils.writeMessage(zmtpMessage, reserve(size), session.isEnveloped(), revision);
+			} else if (message instanceof ChannelBuffer) {
+				final ChannelBuffer data = (ChannelBuffer) message;
+				size = data.readableBytes();
+				reserve(size).writeBytes(data, data.readerIndex(), size);
+			} else {
+				// Write anything else as is, after the messages before it
+				flush();
+				ctx.sendDownstream(e);
+				return;
+			}
+			pendingFutures.add(e.getFuture());
+		}
+
+		buffered(size);
+	}
+
+	/**
+	 * Returns the outgoing buffer, flushing it first if it does not have room
+	 * for {@code size} more bytes.
+	 */
+	private ChannelBuffer reserve(final int size) {
+		if (pending != null && pending.writableBytes() < size) {
+			flush();
+		}
+		if (pending == null) {
+			pending = ChannelBuffers.buffer(Math.max(size, getFlushThreshold()));
+		}
+		return pending;
+	}
+
+	/**
+	 * Writes the outgoing buffer.
+	 */
+	@Override
+	public void flush(final boolean consolidateOnFlush) {
+		final ChannelHandlerContext ctx = getContext();
+		if (ctx == null) {
+			return;
+		}
+
+		synchronized (this) {
+			if (pendingFutures.isEmpty()) {
+				return;
+			}
+
+			final ChannelBuffer buffer = (pending == null) ? ChannelBuffers.EMPTY_BUFFER : pending;
+			final List<ChannelFuture> futures = pendingFutures;
+			pending = null;
+			pendingFutures = new ArrayList<ChannelFuture>();
+
+			final ChannelFuture future;
+			if (futures.size() == 1) {
+				future = futures.get(0);
+			} else {
+				future = Channels.future(ctx.getChannel());
+				future.addListener(new ChannelFutureListener() {
+					@Override
+					public void operationComplete(final ChannelFuture future) throws Exception {
+						notifyFutures(futures, future);
+					}
+				});
+			}
+
+			Channels.write(ctx, future, buffer);
+		}
+	}
+
+	@Override
+	protected synchronized boolean hasBufferedWrites() {
+		return !pendingFutures.isEmpty();
+	}
+
+	/**
+	 * Called when the channel is closed.
+	 */
+	@Override
+	public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+		final List<ChannelFuture> futures;
+		synchronized (this) {
+			futures = pendingFutures;
+			pending = null;
+			pendingFutures = new ArrayList<ChannelFuture>();
+		}
+		final ChannelFuture closed = Channels.failedFuture(ctx.getChannel(), new ClosedChannelException());
+		notifyFutures(futures, closed);
+
+		super.channelClosed(ctx, e);
+	}
+
+	@SuppressWarnings("ForLoopReplaceableByForEach")
+	private static void notifyFutures(final List<ChannelFuture> futures, final ChannelFuture result) {
+		if (result.isSuccess()) {
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).setSuccess();
+			}
+		} else {
+			for (int i = 0; i < futures.size(); i++) {
+				futures.get(i).setFailure(result.getCause());
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carves outgoing buffers out of larger chunks and recycles a chunk once the writes of all buffers
+ * carved out of it have completed. An arena can be shared by the encoders of several channels, e.g.
+ * all channels served by the same I/O thread.
+ *
+ * Buffers allocated from an arena must not be retained by anything after their write future has
+ * completed.
+ */
+public class ZMTPBufferArena {
+
+  private static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+  private static final int DEFAULT_MAX_FREE_CHUNKS = 4;
+
+  private final int chunkSize;
+  private final boolean direct;
+  private final int maxFreeChunks;
+
+  private final Deque<Chunk> freeChunks = new ArrayDeque<Chunk>();
+  private Chunk current;
+
+  /**
+   * Create an arena of heap buffers with default parameters.
+   */
+  public ZMTPBufferArena() {
+    this(DEFAULT_CHUNK_SIZE, false);
+  }
+
+  /**
+   * Create an arena with a custom chunk size.
+   *
+   * @param chunkSize The size of each chunk. Larger buffers are allocated outside of the arena.
+   * @param direct    true to allocate direct buffers, false to allocate heap buffers.
+   */
+  public ZMTPBufferArena(final int chunkSize, final boolean direct) {
+    this(chunkSize, direct, DEFAULT_MAX_FREE_CHUNKS);
+  }
+
+  /**
+   * Create an arena with a custom chunk size and number of retained chunks.
+   *
+   * @param chunkSize     The size of each chunk. Larger buffers are allocated outside of the
+   *                      arena.
+   * @param direct        true to allocate direct buffers, false to allocate heap buffers.
+   * @param maxFreeChunks The maximum number of unused chunks kept for recycling.
+   */
+  public ZMTPBufferArena(final int chunkSize, final boolean direct, final int maxFreeChunks) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize: " + chunkSize);
+    }
+    this.chunkSize = chunkSize;
+    this.direct = direct;
+    this.maxFreeChunks = maxFreeChunks;
+  }
+
+  /**
+   * Allocate an empty buffer with room for exactly {@code size} bytes. The space is returned to the
+   * arena when the write future completes.
+   *
+   * @param size   The number of bytes needed.
+   * @param future The future of the write of the buffer.
+   * @return A buffer with a capacity of {@code size} bytes.
+   */
+  public ChannelBuffer allocate(final int size, final ChannelFuture future) {
+    if (size > chunkSize) {
+      return newBuffer(size);
+    }
+
+    final Chunk chunk;
+    final ChannelBuffer region;
+    synchronized (this) {
+      if (current == null || current.buffer.writableBytes() < size) {
+        if (current != null) {
+          current.release();
+        }
+        current = freeChunks.poll();
+        if (current == null) {
+          current = new Chunk(newBuffer(chunkSize));
+        }
+        current.refs.set(1);
+      }
+      chunk = current;
+      final ChannelBuffer buffer = chunk.buffer;
+      region = buffer.slice(buffer.writerIndex(), size);
+      buffer.writerIndex(buffer.writerIndex() + size);
+      chunk.refs.incrementAndGet();
+    }
+
+    future.addListener(chunk);
+    region.clear();
+    return region;
+  }
+
+  private ChannelBuffer newBuffer(final int size) {
+    return direct ? ChannelBuffers.directBuffer(size) : ChannelBuffers.buffer(size);
+  }
+
+  private synchronized void recycle(final Chunk chunk) {
+    if (freeChunks.size() < maxFreeChunks) {
+      chunk.buffer.clear();
+      freeChunks.push(chunk);
+    }
+  }
+
+  /**
+   * A chunk is referenced once by the arena while it is being carved up, and once by every buffer
+   * that has not yet been written.
+   */
+  private class Chunk implements ChannelFutureListener {
+
+    final ChannelBuffer buffer;
+    final AtomicInteger refs = new AtomicInteger();
+
+    Chunk(final ChannelBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    void release() {
+      if (refs.decrementAndGet() == 0) {
+        recycle(this);
+      }
+    }
+
+    @Override
+    public void operationComplete(final ChannelFuture future) throws Exception {
+      release();
+    }
+  }
+}
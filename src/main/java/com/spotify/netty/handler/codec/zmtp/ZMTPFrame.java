@@ -16,16 +16,54 @@
 package com.spotify.netty.handler.codec.zmtp;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 
 public class ZMTPFrame {
 
-  private final byte[] data;
+  private byte[] data;
+  private ChannelBuffer buffer;
+
+  /**
+   * Whether this frame belongs to a {@link ZMTPMessagePool}.
+   */
+  final boolean pooled;
 
   private ZMTPFrame(final byte[] data) {
     this.data = data;
+    this.buffer = null;
+    this.pooled = false;
+  }
+
+  private ZMTPFrame(final ChannelBuffer buffer) {
+    this.data = null;
+    this.buffer = buffer;
+    this.pooled = false;
+  }
+
+  /**
+   * Create an empty frame for a pool.
+   */
+  ZMTPFrame() {
+    this.pooled = true;
+  }
+
+  /**
+   * Set the data of a pooled frame to a read-only slice of the buffer, like {@link #slice}.
+   */
+  void setSlice(final ChannelBuffer buffer, final int length) {
+    this.data = null;
+    this.buffer = length <= 0 ? null : ChannelBuffers.unmodifiableBuffer(buffer.readSlice(length));
+  }
+
+  /**
+   * Clear the data of a pooled frame, so that it does not keep a received buffer reachable.
+   */
+  void clear() {
+    this.data = null;
+    this.buffer = null;
   }
 
   /**
@@ -33,23 +71,73 @@ public class ZMTPFrame {
    */
   public boolean hasData() {
     // Empty frame only contains flag byte
-    return data != null;
+    return data != null || buffer != null;
   }
 
   /**
-   * Returns the data for a frame
+   * Returns the data for a frame. Frames backed by a buffer slice copy their data into a byte array
+   * the first time this is called.
    */
   public byte[] getData() {
+    if (data == null && buffer != null) {
+      data = copyData();
+    }
     return data;
   }
 
+  /**
+   * Returns the data for a frame as a byte array, copying the data of a frame backed by a buffer
+   * slice without keeping the copy.
+   */
+  private byte[] copyData() {
+    if (data != null || buffer == null) {
+      return data;
+    }
+    final byte[] bytes = new byte[buffer.readableBytes()];
+    buffer.getBytes(buffer.readerIndex(), bytes);
+    return bytes;
+  }
+
+  private byte getByte(final int index) {
+    return buffer != null ? buffer.getByte(buffer.readerIndex() + index) : data[index];
+  }
+
+  /**
+   * Returns a read-only view of the data for a frame, without copying it.
+   *
+   * @return A buffer with the frame data as readable bytes, or null if the frame is empty.
+   */
+  public ChannelBuffer getDataBuffer() {
+    if (buffer != null) {
+      return buffer.duplicate();
+    }
+    if (data != null) {
+      return ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(data));
+    }
+    return null;
+  }
+
   /**
    * Returns the length of the data
    */
   public int size() {
+    if (buffer != null) {
+      return buffer.readableBytes();
+    }
     return (data == null ? 0 : data.length);
   }
 
+  /**
+   * Writes the data of this frame to a buffer without materialising it as a byte array.
+   */
+  void writeData(final ChannelBuffer target) {
+    if (buffer != null) {
+      target.writeBytes(buffer, buffer.readerIndex(), buffer.readableBytes());
+    } else if (data != null) {
+      target.writeBytes(data);
+    }
+  }
+
   /**
    * Create a frame from a string
    *
@@ -89,16 +177,40 @@ public class ZMTPFrame {
 
     final ZMTPFrame zmtpFrame = (ZMTPFrame) o;
 
-    if (!Arrays.equals(data, zmtpFrame.data)) {
+    if (hasData() != zmtpFrame.hasData()) {
       return false;
     }
+    if (buffer == null && zmtpFrame.buffer == null) {
+      return Arrays.equals(data, zmtpFrame.data);
+    }
+    if (buffer != null && zmtpFrame.buffer != null) {
+      return ChannelBuffers.equals(buffer, zmtpFrame.buffer);
+    }
 
+    final int size = size();
+    if (size != zmtpFrame.size()) {
+      return false;
+    }
+    for (int i = 0; i < size; i++) {
+      if (getByte(i) != zmtpFrame.getByte(i)) {
+        return false;
+      }
+    }
     return true;
   }
 
   @Override
   public int hashCode() {
-    return data != null ? Arrays.hashCode(data) : 0;
+    if (!hasData()) {
+      return 0;
+    }
+    // The same for array and buffer backed frames
+    final int size = size();
+    int result = 1;
+    for (int i = 0; i < size; i++) {
+      result = 31 * result + getByte(i);
+    }
+    return result;
   }
 
   /**
@@ -119,14 +231,38 @@ public class ZMTPFrame {
     return new ZMTPFrame(data);
   }
 
+  /**
+   * Helper used during decoding of a ZMTP frame. The returned frame holds a read-only slice of the
+   * buffer instead of a copy of the data, so the buffer contents must not be modified afterwards.
+   * Note that the slice keeps the whole underlying buffer reachable for as long as the frame is.
+   *
+   * @param length length of buffer
+   * @return A {@link ZMTPFrame} backed by the data read from the buffer.
+   */
+  static public ZMTPFrame slice(final ChannelBuffer buffer, final int length) {
+    if (length <= 0) {
+      return new ZMTPFrame((byte[]) null);
+    }
+
+    return new ZMTPFrame(ChannelBuffers.unmodifiableBuffer(buffer.readSlice(length)));
+  }
+
+  /**
+   * Returns a new frame backed by a read-only view of the readable bytes of the buffer, without
+   * copying them. The buffer contents must not be modified afterwards.
+   */
+  static public ZMTPFrame wrap(final ChannelBuffer buffer) {
+    return slice(buffer.duplicate(), buffer.readableBytes());
+  }
+
   @Override
   public String toString() {
     return "ZMTPFrame{" +
-           ", data=" + ZMTPUtils.toString(data) +
+           ", data=" + ZMTPUtils.toString(copyData()) +
            '}';
   }
 
   public static ZMTPFrame create() {
-    return new ZMTPFrame(null);
+    return new ZMTPFrame((byte[]) null);
   }
 }
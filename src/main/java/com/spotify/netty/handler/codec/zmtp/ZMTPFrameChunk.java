@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * A part of the data of a streamed frame, following a {@link ZMTPFrameStart}. The chunks of a
+ * frame are delivered as the data arrives, so the frame is never held in memory as a whole.
+ */
+public class ZMTPFrameChunk {
+
+  private final ChannelBuffer data;
+  private final boolean last;
+  private final boolean more;
+
+  public ZMTPFrameChunk(final ChannelBuffer data, final boolean last, final boolean more) {
+    this.data = data;
+    this.last = last;
+    this.more = more;
+  }
+
+  /**
+   * Return the data of this chunk, as a read-only view of the received data.
+   *
+   * @return A buffer with the data as readable bytes.
+   */
+  public ChannelBuffer getData() {
+    return data;
+  }
+
+  /**
+   * @return true if this is the last chunk of the frame.
+   */
+  public boolean isLast() {
+    return last;
+  }
+
+  /**
+   * @return true if this is the last chunk of the frame and more frames of the message follow.
+   */
+  public boolean hasMore() {
+    return more;
+  }
+
+  @Override
+  public String toString() {
+    return "ZMTPFrameChunk{" +
+           "size=" + data.readableBytes() +
+           ", last=" + last +
+           ", more=" + more +
+           '}';
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+/**
+ * Marks the start of a frame that is delivered as a sequence of {@link ZMTPFrameChunk}s rather
+ * than as part of a {@link ZMTPMessage}, as it is larger than the streaming threshold of the
+ * decoder.
+ *
+ * If the last chunk of the frame has more frames following it, the next message delivered holds
+ * the rest of the frames of the message, which may include further streamed frames.
+ */
+public class ZMTPFrameStart {
+
+  private final ZMTPMessage head;
+  private final long size;
+
+  public ZMTPFrameStart(final ZMTPMessage head, final long size) {
+    this.head = head;
+    this.size = size;
+  }
+
+  /**
+   * Return the frames of the message preceding the streamed frame.
+   *
+   * @return The frames preceding the streamed frame, which may be none.
+   */
+  public ZMTPMessage getHead() {
+    return head;
+  }
+
+  /**
+   * Return the size of the streamed frame.
+   *
+   * @return The size of the frame, as declared in its header.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    return "ZMTPFrameStart{" +
+           "head=" + head +
+           ", size=" + size +
+           '}';
+  }
+}
@@ -25,26 +25,164 @@ import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.handler.codec.frame.FrameDecoder;
 
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.spotify.netty.handler.codec.zmtp.ZMTPUtils.COMMAND_FLAG;
 import static com.spotify.netty.handler.codec.zmtp.ZMTPUtils.FINAL_FLAG;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPUtils.LONG_FLAG;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPUtils.MORE_FLAG;
 
 /**
  * Netty FrameDecoder for zmtp protocol
  * 
  * Decodes ZMTP frames into a ZMTPMessage - will return a ZMTPMessage as a
  * message event
+ * 
+ * Sessions speaking ZMTP/2.0 or ZMTP/3.0 greet the remote peer and use the
+ * highest revision supported by both sides, falling back to ZMTP/1.0 for peers
+ * that do not send a greeting. ZMTP/3.0 connections are set up using the NULL
+ * security mechanism.
+ * 
+ * The handshake is parsed a byte at a time as data arrives, and any data
+ * following it is decoded in the same pass.
+ * 
+ * By default, the connected event is sent upstream when the handshake is
+ * complete. When pipelining the handshake, it is sent right away so that
+ * messages can be written without waiting for the remote peer. Such messages
+ * are sent right after our identity, or held by the encoder until the revision
+ * used with the remote peer is known and sent after our greeting.
+ * 
+ * A large frame arriving over many reads is accumulated into a buffer of its
+ * own, which grows with the data received: each buffer holds
+ * min(pending, max(8192, 2 * readable)) bytes, where pending is the size of
+ * the frame and readable is how much of it has been received. The size given
+ * by the frame header is not trusted for allocating up front, as a hostile
+ * peer could announce huge frames without sending them, so a frame costs at
+ * most about twice its size in copies. The buffer is let go as soon as the
+ * frame is decoded, so idle connections do not pin buffers sized for spikes.
  */
 public class ZMTPFramingDecoder extends FrameDecoder {
 
-	private final ZMTPMessageParser parser;
+	/**
+	 * Handshake parser states. A greeting starts with a signature that reads
+	 * like the header of a ZMTP/1.0 identity frame with a long length, so peers
+	 * of all revisions are told apart by the flags byte following the length.
+	 */
+	private enum Handshake {
+		/** The length of a ZMTP/1.0 identity frame, or the start of a signature. */
+		LENGTH,
+		/** The long length of a ZMTP/1.0 identity frame, or signature padding. */
+		LONG_LENGTH,
+		/** The flags of a ZMTP/1.0 identity frame, or the end of a signature. */
+		FLAGS,
+		REVISION,
+		SOCKET_TYPE,
+		/** The rest of a ZMTP/3.0 greeting, after the revision. */
+		GREETING,
+		/** The flags of a ZMTP/2.0 identity frame or ZMTP/3.0 command. */
+		FRAME_FLAGS,
+		FRAME_SIZE,
+		/** The body of an identity frame or command. */
+		FRAME_BODY,
+		DONE,
+		FAILED
+	}
+
+	private static final int SIGNATURE_SIZE = 10;
+	private static final int MECHANISM_SIZE = 20;
+	private static final int GREETING_SIZE = 64;
+	private static final int GREETING_REST_SIZE = GREETING_SIZE - SIGNATURE_SIZE - 1;
+
+	/**
+	 * Identities are at most 255 bytes and the commands exchanged during the
+	 * handshake are small, so anything larger is a protocol violation.
+	 */
+	private static final int MAX_HANDSHAKE_FRAME_SIZE = 0xFFFF;
+
+	private static final byte[] NULL_MECHANISM = { 'N', 'U', 'L', 'L' };
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * Frames at least this large that arrive over several reads are
+	 * accumulated into a buffer of their own, which grows with the received
+	 * data, at most doubling each time, until it is the exact size of the
+	 * frame.
+	 */
+	private static final int EXACT_CUMULATION_THRESHOLD = 8192;
+
+	private ZMTPMessageParser parser;
 	private final AbstractZMTPSession session;
+	private final boolean batchMessages;
+	private final boolean pipelineHandshake;
+	private final ZMTPSubscriptions subscriptions;
+	private final int streamThreshold;
+	private final ZMTPLimits limits;
+	private final boolean pooled;
+	private final boolean detectLeaks;
 	private ChannelFuture handshakeFuture;
 
+	/**
+	 * The cumulation buffer allocated for a large frame, if any.
+	 */
+	private ChannelBuffer frameCumulation;
+
+	private Handshake handshake = Handshake.LENGTH;
+	private int position;
+	private long size;
+	private int sizeBytes;
+	private byte[] body;
+
 	/**
 	 * Creates a new decoder
 	 */
 	public ZMTPFramingDecoder(final AbstractZMTPSession session) {
-		this.session = session;
-		this.parser = new ZMTPMessageParser(session.isEnveloped());
+		this(session, false);
+	}
+
+	/**
+	 * Creates a new decoder, controlling whether messages are delivered one by
+	 * one or in batches. When batching, all complete messages in the received
+	 * data are delivered as a single message event containing a
+	 * {@code List<ZMTPIncomingMessage>}.
+	 * 
+	 * @param session
+	 *            The session.
+	 * @param batchMessages
+	 *            true if messages should be delivered in batches, false
+	 *            otherwise.
+	 */
+	public ZMTPFramingDecoder(final AbstractZMTPSession session, final boolean batchMessages) {
+		this(builder(session).batchMessages(batchMessages));
+	}
+
+	/**
+	 * Creates a new decoder configured by a builder.
+	 * 
+	 * @param builder
+	 *            The builder.
+	 */
+	protected ZMTPFramingDecoder(final Builder builder) {
+		this.session = builder.session;
+		this.batchMessages = builder.batchMessages;
+		this.pipelineHandshake = builder.pipelineHandshake;
+		this.subscriptions = builder.subscriptions;
+		this.streamThreshold = builder.streamThreshold;
+		this.limits = builder.limits;
+		this.pooled = builder.pooled;
+		this.detectLeaks = builder.detectLeaks;
+		if (batchMessages && streamThreshold != Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Frames cannot be streamed when batching messages");
+		}
+	}
+
+	/**
+	 * @return A builder for a decoder of a session.
+	 */
+	public static Builder builder(final AbstractZMTPSession session) {
+		return new Builder(session);
 	}
 
 	/**
@@ -69,87 +207,198 @@ public class ZMTPFramingDecoder extends FrameDecoder {
 			}
 			// Send identity message
 			channel.write(msg);
-		}
-
-		if (session.getRevision() == ZMTPRevision.ZMTP_20) {
-			sendGreeting(channel);
+		} else {
+			sendSignature(channel);
 		}
 
 	}
 
 	/**
-	 * Parses the remote zmtp identity received
+	 * Parses the remote identity or greeting, consuming data a byte at a time
+	 * and keeping state between calls.
+	 * 
+	 * @return true if the handshake is complete, false if more data is needed.
 	 */
-	private boolean handleRemoteIdentity(final ChannelBuffer buffer) {
-		if (session.getRevision() == ZMTPRevision.ZMTP_10) {
-
-			buffer.markReaderIndex();
+	private boolean parseHandshake(final Channel channel, final ChannelBuffer buffer) {
+		while (buffer.readable()) {
+			switch (handshake) {
+			case LENGTH:
+				size = buffer.readUnsignedByte();
+				if (size == 0xFF) {
+					size = 0;
+					position = 0;
+					handshake = Handshake.LONG_LENGTH;
+				} else {
+					if (isGreeting()) {
+						// No signature, this is a ZMTP/1.0 peer sending its
+						// identity
+						downgrade(channel);
+					}
+					handshake = Handshake.FLAGS;
+				}
+				break;
 
-			final long len = ZMTPUtils.decodeLength(buffer);
+			case LONG_LENGTH:
+				size = (size << 8) | buffer.readUnsignedByte();
+				if (++position == 8) {
+					handshake = Handshake.FLAGS;
+				}
+				break;
+
+			case FLAGS:
+				final byte flags = buffer.readByte();
+				if (isGreeting()) {
+					if ((flags & 0x01) == 0x01) {
+						// End of signature
+						channel.write(ChannelBuffers.wrappedBuffer(new byte[] { session.getRevision().getRevision() }));
+						handshake = Handshake.REVISION;
+						break;
+					}
+					downgrade(channel);
+				}
 
-			// Bail out if there's not enough data
-			if (len == -1 || buffer.readableBytes() < len) {
-				buffer.resetReaderIndex();
-				return false;
-			}
+				// More flag should not be set (TODO: is this true?)
+				if ((flags & MORE_FLAG) == MORE_FLAG) {
+					handshakeFuture.setFailure(new ZMTPException(
+							"Expected identity from remote side but got a frame with MORE flag set."));
+				}
+				if (size == 0) {
+					throw handshakeFailure("Received frame with zero length");
+				}
+				startFrameBody(channel, size - 1);
+				break;
+
+			case REVISION:
+				final ZMTPSession2 session2 = (ZMTPSession2) session;
+				final short revision = buffer.readUnsignedByte();
+				if (revision < ZMTPRevision.ZMTP_20.getRevision()) {
+					throw handshakeFailure("Unsupported ZMTP revision: " + revision);
+				}
+				if (revision >= ZMTPRevision.ZMTP_30.getRevision() && session.getRevision() == ZMTPRevision.ZMTP_30) {
+					sendGreeting30(channel, session2.getConnectionType());
+					position = 0;
+					handshake = Handshake.GREETING;
+				} else {
+					session2.setRevision(ZMTPRevision.ZMTP_20);
+					sendGreeting20(channel, session2.getConnectionType());
+					handshake = Handshake.SOCKET_TYPE;
+				}
+				session.revisionAgreed();
+				break;
+
+			case SOCKET_TYPE:
+				checkSocketType(ZMTPSocketType.fromByte(buffer.readByte()));
+				handshake = Handshake.FRAME_FLAGS;
+				break;
+
+			case GREETING:
+				// The minor version, mechanism, as-server and filler. Only the
+				// mechanism matters with the NULL mechanism.
+				if (position >= 1 && position <= MECHANISM_SIZE) {
+					final int i = position - 1;
+					final byte expected = i < NULL_MECHANISM.length ? NULL_MECHANISM[i] : 0;
+					if (buffer.readByte() != expected) {
+						throw handshakeFailure("Unsupported security mechanism");
+					}
+					position++;
+				} else {
+					final int limit = (position == 0) ? 1 : GREETING_REST_SIZE - position;
+					final int skip = Math.min(buffer.readableBytes(), limit);
+					buffer.skipBytes(skip);
+					position += skip;
+				}
+				if (position == GREETING_REST_SIZE) {
+					handshake = Handshake.FRAME_FLAGS;
+				}
+				break;
 
-			final int flags = buffer.readByte();
+			case FRAME_FLAGS:
+				final byte frameFlags = buffer.readByte();
+				if (session.getRevision() == ZMTPRevision.ZMTP_30 && (frameFlags & COMMAND_FLAG) == 0) {
+					throw handshakeFailure("Expected READY command from remote side but got a message frame");
+				}
+				size = 0;
+				position = 0;
+				sizeBytes = (frameFlags & LONG_FLAG) == 0 ? 1 : 8;
+				handshake = Handshake.FRAME_SIZE;
+				break;
+
+			case FRAME_SIZE:
+				size = (size << 8) | buffer.readUnsignedByte();
+				if (++position == sizeBytes) {
+					startFrameBody(channel, size);
+				}
+				break;
+
+			case FRAME_BODY:
+				final int n = Math.min(buffer.readableBytes(), body.length - position);
+				buffer.readBytes(body, position, n);
+				position += n;
+				if (position == body.length) {
+					handleFrameBody();
+				}
+				break;
 
-			// More flag should not be set (TODO: is this true?)
-			if ((flags & ZMTPUtils.MORE_FLAG) == ZMTPUtils.MORE_FLAG) {
-				handshakeFuture.setFailure(new ZMTPException(
-						"Expected identity from remote side but got a frame with MORE flag set."));
+			default:
+				throw new IllegalStateException("handshake: " + handshake);
 			}
 
-			if (len == 1) {
-				// Anonymous identity
-				session.setRemoteIdentity(null);
-			} else {
-				// Read identity from remote
-				final byte[] identity = new byte[(int) len - 1];
-				buffer.readBytes(identity);
-
-				// Anonymous identity
-				session.setRemoteIdentity(identity);
+			if (handshake == Handshake.DONE) {
+				return true;
 			}
-
-			handshakeFuture.setSuccess();
 		}
+		return false;
+	}
 
-		if (session.getRevision() == ZMTPRevision.ZMTP_20) {
-			// check signature, revision, socket-type
-			buffer.markReaderIndex();
-			// Bail out if there's not enough data
-			if (buffer.readableBytes() < 1) {
-				buffer.resetReaderIndex();
-				return false;
-			}
+	/**
+	 * Whether the remote greeting is yet to be told apart from a ZMTP/1.0
+	 * identity frame.
+	 */
+	private boolean isGreeting() {
+		return session.getRevision() != ZMTPRevision.ZMTP_10;
+	}
 
-			if (isSignatureValid(buffer)) {
-				final byte revision = buffer.readByte();
-				if (revision != ZMTPRevision.ZMTP_20.getRevision()) {
-					// TODO: revision is not the same - should we handle it?
-					buffer.resetReaderIndex();
-					return false;
-				}
-				ZMTPSession2 zmtp2 = (ZMTPSession2) session;
-				if (canAcceptConnection(buffer, zmtp2.getConnectionType())) {
-					final long len = ZMTPUtils.decodeLength(buffer);
-					// Read identity from remote
-					final byte[] identity = new byte[(int) len - 1];
-					buffer.readBytes(identity);
-
-					// Anonymous identity
-					session.setRemoteIdentity(identity);
-					handshakeFuture.setSuccess();
-				} else {
-					buffer.resetReaderIndex();
-					return false;
-				}
-			}
+	/**
+	 * Falls back to ZMTP/1.0. Our signature was the header of our identity
+	 * frame, so the identity itself is sent next.
+	 */
+	private void downgrade(final Channel channel) {
+		((ZMTPSession2) session).setRevision(ZMTPRevision.ZMTP_10);
+		final byte[] identity = localIdentity();
+		if (identity.length > 0) {
+			channel.write(ChannelBuffers.wrappedBuffer(identity));
+		}
+		session.revisionAgreed();
+	}
+
+	private void startFrameBody(final Channel channel, final long size) {
+		if (size < 0 || size > MAX_HANDSHAKE_FRAME_SIZE) {
+			throw handshakeFailure("Received too large frame during handshake: " + size);
+		}
+		body = new byte[(int) size];
+		position = 0;
+		handshake = Handshake.FRAME_BODY;
+		if (size == 0) {
+			handleFrameBody();
+		}
+	}
 
+	/**
+	 * Handles the remote identity, or the READY command of a ZMTP/3.0 peer,
+	 * completing the handshake.
+	 */
+	private void handleFrameBody() {
+		if (session.getRevision() == ZMTPRevision.ZMTP_30) {
+			handleReady(ChannelBuffers.wrappedBuffer(body));
+		} else {
+			// An empty identity is anonymous
+			session.setRemoteIdentity(body.length > 0 ? body : null);
 		}
-		return true;
+		body = null;
+		parser = new ZMTPMessageParser(session.isEnveloped(), session.getRevision(), subscriptions,
+				streamThreshold, limits, pooled, detectLeaks);
+		handshake = Handshake.DONE;
+		handshakeFuture.setSuccess();
 	}
 
 	/**
@@ -158,32 +407,135 @@ public class ZMTPFramingDecoder extends FrameDecoder {
 	@Override
 	protected Object decode(final ChannelHandlerContext ctx, final Channel channel, final ChannelBuffer buffer)
 			throws Exception {
-		if (buffer.readableBytes() < 2) {
+		if (handshake != Handshake.DONE) {
+			if (handshake == Handshake.FAILED) {
+				// Discard anything after a failed handshake or exceeded limit
+				buffer.skipBytes(buffer.readableBytes());
+				return null;
+			}
+			// Should be first packet received from host
+			if (!parseHandshake(channel, buffer)) {
+				return null;
+			}
+		}
+
+		try {
+			return decodeMessages(ctx, buffer);
+		} catch (final ZMTPLimitException e) {
+			if (limits.getAction() != ZMTPLimits.Action.CLOSE) {
+				throw e;
+			}
+			handshake = Handshake.FAILED;
+			buffer.skipBytes(buffer.readableBytes());
+			channel.close();
 			return null;
 		}
+	}
 
-		if (session.getRemoteIdentity() == null) {
-			// Should be first packet received from host
-			if (!handleRemoteIdentity(buffer)) {
-				return null;
+	/**
+	 * Appends received data to the buffer allocated for a large frame if it
+	 * fits, and to the default cumulation otherwise.
+	 */
+	@Override
+	protected ChannelBuffer appendToCumulation(final ChannelBuffer input) {
+		final ChannelBuffer frameCumulation = this.frameCumulation;
+		if (frameCumulation != null && cumulation == frameCumulation
+				&& frameCumulation.writableBytes() >= input.readableBytes()) {
+			frameCumulation.writeBytes(input);
+			return frameCumulation;
+		}
+		return super.appendToCumulation(input);
+	}
+
+	/**
+	 * Keeps the data left after decoding. If the data is the start of a large
+	 * frame, it is copied into a buffer of its own, at most twice as large as
+	 * the data and no larger than the frame. When that buffer is full, the
+	 * data is copied into a larger one.
+	 */
+	@Override
+	protected ChannelBuffer updateCumulation(final ChannelHandlerContext ctx, final ChannelBuffer input) {
+		final long pending = parser == null ? -1 : parser.pendingFrameSize();
+		final int readable = input.readableBytes();
+		if (pending > readable && pending <= Integer.MAX_VALUE && pending >= EXACT_CUMULATION_THRESHOLD) {
+			if (input == frameCumulation && input.readerIndex() == 0) {
+				// Still filling the buffer of the frame
+				cumulation = input;
+				return input;
 			}
+			// The size of the frame is only claimed by the peer, so grow the
+			// buffer with the data received, up to the size of the frame
+			final int capacity = (int) Math.min(pending, Math.max(EXACT_CUMULATION_THRESHOLD, 2L * readable));
+			final ChannelBuffer buffer = newCumulationBuffer(ctx, capacity);
+			buffer.writeBytes(input);
+			frameCumulation = buffer;
+			cumulation = buffer;
+			return buffer;
+		}
+		frameCumulation = null;
+		return super.updateCumulation(ctx, input);
+	}
+
+	private Object decodeMessages(final ChannelHandlerContext ctx, final ChannelBuffer buffer) {
+		if (batchMessages) {
+			return decodeBatch(ctx, buffer);
 		}
 
 		// Parse incoming frames
-		final ZMTPMessage message = parser.parse(buffer);
-		if (message == null) {
-			return null;
+		final Object parsed = parser.parseStreaming(buffer);
+		if (!(parsed instanceof ZMTPMessage)) {
+			// Nothing, or a part of a streamed frame
+			return parsed;
 		}
 
+		return incoming((ZMTPMessage) parsed);
+	}
+
+	private ZMTPIncomingMessage incoming(final ZMTPMessage message) {
+		if (pooled) {
+			return ZMTPMessagePool.get().incoming(session, message);
+		}
 		return new ZMTPIncomingMessage(session, message);
 	}
 
+	/**
+	 * Parses all complete messages in the buffer. If a message exceeds the
+	 * limits, the messages parsed before it are sent upstream before the
+	 * exception is thrown.
+	 * 
+	 * @return A list of messages, or null if there was no complete message.
+	 */
+	private List<ZMTPIncomingMessage> decodeBatch(final ChannelHandlerContext ctx, final ChannelBuffer buffer) {
+		List<ZMTPIncomingMessage> batch = null;
+		ZMTPMessage message;
+		try {
+			while ((message = parser.parse(buffer)) != null) {
+				if (batch == null) {
+					batch = new ArrayList<ZMTPIncomingMessage>();
+				}
+				batch.add(incoming(message));
+			}
+		} catch (final ZMTPLimitException e) {
+			if (batch != null) {
+				Channels.fireMessageReceived(ctx, batch, ctx.getChannel().getRemoteAddress());
+			}
+			throw e;
+		}
+		return batch;
+	}
+
 	@Override
 	public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
 		// Store channel in the session
 		this.session.setChannel(e.getChannel());
 
-		handshake(ctx.getChannel()).addListener(new ChannelFutureListener() {
+		final ChannelFuture handshake = handshake(ctx.getChannel());
+		if (pipelineHandshake) {
+			ctx.sendUpstream(e);
+			return;
+		}
+
+		handshake.addListener(new ChannelFutureListener() {
 			@Override
 			public void operationComplete(final ChannelFuture future) throws Exception {
 				ctx.sendUpstream(e);
@@ -193,6 +545,7 @@ public class ZMTPFramingDecoder extends FrameDecoder {
 
 	private ChannelFuture handshake(final Channel channel) {
 		handshakeFuture = Channels.future(channel);
+		session.setHandshakeFuture(handshakeFuture);
 
 		// Send our identity
 		sendIdentity(channel);
@@ -201,123 +554,241 @@ public class ZMTPFramingDecoder extends FrameDecoder {
 	}
 
 	/**
-	 * Sends the greeting message.
+	 * Sends the greeting signature. To a ZMTP/1.0 peer, the signature looks
+	 * like the header of an identity frame, so that we can fall back to
+	 * ZMTP/1.0 by sending the identity.
 	 * 
 	 * @param channel
 	 *            - current channel
 	 */
-	private void sendGreeting(Channel channel) {
-		final ChannelBuffer msg;
-		// TODO: it is still possible to use anonymous?
-		if (session.useLocalIdentity()) {
-			// send session current greeting
-			msg = ChannelBuffers.dynamicBuffer(14 + session.getLocalIdentity().length);
-
-			msg.writeByte(0xFF);
-			msg.writeBytes(ZMTPUtils.ZMTP_20_SIGNATURE);
-			msg.writeByte(session.getRevision().getRevision());
-			ZMTPSession2 session2 = (ZMTPSession2) session;
-			msg.writeByte(session2.getConnectionType().getEncodedValue());
-			ZMTPUtils.encodeLength(1 + session.getLocalIdentity().length, msg);
-			msg.writeByte(FINAL_FLAG);
-			msg.writeBytes(session.getLocalIdentity());
-		} else {
-			msg = ChannelBuffers.dynamicBuffer(2);
-			// Anonymous identity
-			msg.writeByte(1);
-			msg.writeByte(FINAL_FLAG);
+	private void sendSignature(final Channel channel) {
+		final ChannelBuffer msg = ChannelBuffers.buffer(SIGNATURE_SIZE);
+		msg.writeByte(0xFF);
+		msg.writeLong(localIdentity().length + 1);
+		msg.writeByte(0x7F);
+		channel.write(msg);
+	}
+
+	/**
+	 * Sends the rest of a ZMTP/2.0 greeting: the socket type and identity.
+	 */
+	private void sendGreeting20(final Channel channel, final ZMTPSocketType socketType) {
+		final ZMTPFrame identity = ZMTPFrame.create(localIdentity());
+		final ChannelBuffer msg = ChannelBuffers.buffer(1 + ZMTPUtils.frameSize(identity, ZMTPRevision.ZMTP_20));
+		msg.writeByte(socketType.getEncodedValue());
+		ZMTPUtils.writeFrame(identity, msg, false, ZMTPRevision.ZMTP_20);
+		channel.write(msg);
+	}
+
+	/**
+	 * Sends the rest of a ZMTP/3.0 greeting, followed by the READY command of
+	 * the NULL mechanism.
+	 */
+	private void sendGreeting30(final Channel channel, final ZMTPSocketType socketType) {
+		final ChannelBuffer ready = ChannelBuffers.dynamicBuffer();
+		writeShortString("READY", ready);
+		writeProperty("Socket-Type", socketType.name().getBytes(ASCII), ready);
+		if (socketType == ZMTPSocketType.REQ || socketType == ZMTPSocketType.DEALER
+				|| socketType == ZMTPSocketType.ROUTER) {
+			writeProperty("Identity", localIdentity(), ready);
 		}
-		// Send identity message
+		final ZMTPFrame command = ZMTPFrame.wrap(ready);
+
+		final ChannelBuffer msg = ChannelBuffers.buffer(GREETING_SIZE - SIGNATURE_SIZE - 1
+				+ ZMTPUtils.frameSize(command, ZMTPRevision.ZMTP_30));
+		// Minor version
+		msg.writeByte(0x00);
+		msg.writeBytes(NULL_MECHANISM);
+		msg.writeZero(MECHANISM_SIZE - NULL_MECHANISM.length);
+		// As-server and filler
+		msg.writeZero(GREETING_SIZE - SIGNATURE_SIZE - 2 - MECHANISM_SIZE);
+		ZMTPUtils.writeCommand(command, msg);
 		channel.write(msg);
+	}
+
+	/**
+	 * Handles the READY command of the NULL mechanism, reading the socket type
+	 * and identity of the remote peer from its metadata.
+	 */
+	private void handleReady(final ChannelBuffer command) {
+		final String name = readShortString(command);
+		if (name.equals("ERROR")) {
+			throw handshakeFailure("Remote side rejected the connection: " + readShortString(command));
+		}
+		if (!name.equals("READY")) {
+			throw handshakeFailure("Expected READY command from remote side but got " + name);
+		}
+
+		ZMTPSocketType remoteType = ZMTPSocketType.UNKNOWN;
+		byte[] identity = null;
+		while (command.readable()) {
+			final String property = readShortString(command);
+			if (command.readableBytes() < 4) {
+				throw handshakeFailure("Malformed READY command");
+			}
+			final int length = command.readInt();
+			if (length < 0 || length > command.readableBytes()) {
+				throw handshakeFailure("Malformed READY command");
+			}
+			final byte[] value = new byte[length];
+			command.readBytes(value);
+
+			// Property names are case-insensitive
+			if (property.equalsIgnoreCase("Socket-Type")) {
+				remoteType = ZMTPSocketType.fromName(new String(value, ASCII));
+			} else if (property.equalsIgnoreCase("Identity") && length > 0) {
+				identity = value;
+			}
+		}
+
+		checkSocketType(remoteType);
+		session.setRemoteIdentity(identity);
+	}
+
+	private String readShortString(final ChannelBuffer buffer) {
+		if (!buffer.readable()) {
+			throw handshakeFailure("Malformed READY command");
+		}
+		final int length = buffer.readUnsignedByte();
+		if (length > buffer.readableBytes()) {
+			throw handshakeFailure("Malformed READY command");
+		}
+		return buffer.readSlice(length).toString(ASCII);
+	}
+
+	private static void writeShortString(final String value, final ChannelBuffer buffer) {
+		buffer.writeByte(value.length());
+		buffer.writeBytes(value.getBytes(ASCII));
+	}
 
+	private static void writeProperty(final String name, final byte[] value, final ChannelBuffer buffer) {
+		writeShortString(name, buffer);
+		buffer.writeInt(value.length);
+		buffer.writeBytes(value);
 	}
 
 	/**
-	 * Is signature of incoming message valid?
-	 * 
-	 * @param buffer
-	 *            - received buffer
-	 * @return true if signature is valid, false otherwise
+	 * Returns the identity sent to the remote peer, which is empty for
+	 * anonymous sessions.
 	 */
-	private boolean isSignatureValid(final ChannelBuffer buffer) {
-		final int firstByteOfSignature = buffer.readByte();
-		if (firstByteOfSignature != 0xFF) {
-			buffer.resetReaderIndex();
-			return false;
-		}
-		final long zeros = buffer.readLong();
-		if (zeros != 0L) {
-			buffer.resetReaderIndex();
-			return false;
-		}
-		final byte signatureLastByte = buffer.readByte();
-		if (signatureLastByte != 0x7F) {
-			buffer.resetReaderIndex();
-			return false;
-		}
-		return true;
+	private byte[] localIdentity() {
+		return session.useLocalIdentity() ? session.getLocalIdentity() : new byte[0];
+	}
+
+	private void checkSocketType(final ZMTPSocketType remoteType) {
+		final ZMTPSocketType localType = ((ZMTPSession2) session).getConnectionType();
+		if (!localType.isCompatibleWith(remoteType)) {
+			throw handshakeFailure("Socket type " + localType + " cannot connect to remote socket type "
+					+ remoteType);
+		}
 	}
 
 	/**
-	 * Check the socket type for the remote host.
-	 * 
-	 * @param buffer
-	 *            - received buffer
-	 * @param connectionType
-	 *            - local socket type
-	 * @return true if the remote socket type can work with local socket type,
-	 *         false otherwise.
+	 * Fails the handshake.
 	 * 
-	 * 
-	 *         NOTE: XPUB, XSUB is implemented as PUB,SUB
+	 * @return The exception to throw.
 	 */
-	private boolean canAcceptConnection(ChannelBuffer buffer, ZMTPSocketType connectionType) {
-		final byte remoteSocketType = buffer.readByte();
-		ZMTPSocketType remoteSocket = ZMTPSocketType.fromByte(remoteSocketType);
-		// PAIR socket accept connections only from PAIR sockets
-		if (connectionType == ZMTPSocketType.PAIR && remoteSocket == ZMTPSocketType.PAIR) {
-			return true;
-		}
-		// PUB socket accepts connection only from a SUB socket
-		if (connectionType == ZMTPSocketType.PUB && remoteSocket == ZMTPSocketType.SUB) {
-			return true;
+	private ZMTPException handshakeFailure(final String message) {
+		final ZMTPException exception = new ZMTPException(message);
+		handshake = Handshake.FAILED;
+		body = null;
+		handshakeFuture.setFailure(exception);
+		return exception;
+	}
+
+	/**
+	 * Builder for decoders.
+	 */
+	public static class Builder {
+
+		private final AbstractZMTPSession session;
+		private boolean batchMessages;
+		private boolean pipelineHandshake;
+		private ZMTPSubscriptions subscriptions;
+		private int streamThreshold = Integer.MAX_VALUE;
+		private ZMTPLimits limits = ZMTPLimits.NONE;
+		private boolean pooled;
+		private boolean detectLeaks;
+
+		protected Builder(final AbstractZMTPSession session) {
+			this.session = session;
 		}
-		// SUB sockets accept connections only from a PUB socket
-		if (connectionType == ZMTPSocketType.SUB && remoteSocket == ZMTPSocketType.PUB) {
-			return true;
+
+		/**
+		 * Set whether all complete messages in the received data are delivered
+		 * as a single message event containing a
+		 * {@code List<ZMTPIncomingMessage>}.
+		 */
+		public Builder batchMessages(final boolean batchMessages) {
+			this.batchMessages = batchMessages;
+			return this;
 		}
-		// REQ sockets accept connections from a REP or ROUTER socket
-		if (connectionType == ZMTPSocketType.REQ
-				&& (remoteSocket == ZMTPSocketType.REP || remoteSocket == ZMTPSocketType.ROUTER)) {
-			return true;
+
+		/**
+		 * Set whether the connected event is sent upstream as soon as the
+		 * handshake has started, allowing messages to be written before it is
+		 * complete.
+		 */
+		public Builder pipelineHandshake(final boolean pipelineHandshake) {
+			this.pipelineHandshake = pipelineHandshake;
+			return this;
 		}
-		// REP sockets accept connections from a REQ or DEALER socket
-		if (connectionType == ZMTPSocketType.REP
-				&& (remoteSocket == ZMTPSocketType.REQ || remoteSocket == ZMTPSocketType.DEALER)) {
-			return true;
+
+		/**
+		 * Set the subscriptions of a subscriber, so that received messages
+		 * not matching any of them are skipped while decoding. By default, all
+		 * messages are decoded.
+		 */
+		public Builder subscriptions(final ZMTPSubscriptions subscriptions) {
+			this.subscriptions = subscriptions;
+			return this;
 		}
 
-		// DEALER sockets accept connections from a REP, DEALER or ROUTER socket
-		if (connectionType == ZMTPSocketType.DEALER
-				&& (remoteSocket == ZMTPSocketType.REP || remoteSocket == ZMTPSocketType.DEALER || remoteSocket == ZMTPSocketType.ROUTER)) {
-			return true;
+		/**
+		 * Set the size above which frames are delivered as a
+		 * {@link ZMTPFrameStart} followed by {@link ZMTPFrameChunk}s as the
+		 * data arrives, rather than as part of a message. This bounds the
+		 * memory needed for a connection regardless of the size of frames.
+		 * Cannot be combined with batching.
+		 */
+		public Builder streamFramesLargerThan(final int streamThreshold) {
+			this.streamThreshold = streamThreshold;
+			return this;
 		}
 
-		// ROUTER sockets accept connections from a REQ, DEALER or ROUTER socket
-		if (connectionType == ZMTPSocketType.ROUTER
-				&& (remoteSocket == ZMTPSocketType.REQ || remoteSocket == ZMTPSocketType.DEALER || remoteSocket == ZMTPSocketType.ROUTER)) {
-			return true;
+		/**
+		 * Set the limits on the size of received frames and messages. By
+		 * default, there are no limits.
+		 */
+		public Builder limits(final ZMTPLimits limits) {
+			this.limits = limits;
+			return this;
 		}
-		// PUSH sockets accept connections only from a PULL socket
-		if (connectionType == ZMTPSocketType.PUSH && remoteSocket == ZMTPSocketType.PULL) {
-			return true;
+
+		/**
+		 * Set whether decoded messages and their frames are taken from a
+		 * per thread pool. Pooled messages must be returned to the pool with
+		 * {@link ZMTPIncomingMessage#release} once the application is done
+		 * with them, preferably on the I/O thread that decoded them. By
+		 * default, messages are not pooled.
+		 */
+		public Builder pooled(final boolean pooled) {
+			this.pooled = pooled;
+			return this;
 		}
 
-		// PULL sockets accept connections only from a PUSH socket
-		if (connectionType == ZMTPSocketType.PULL && remoteSocket == ZMTPSocketType.PUSH) {
-			return true;
+		/**
+		 * Set whether pooled messages that are garbage collected without
+		 * having been released are logged, along with where they were
+		 * decoded. This is costly and meant for debugging.
+		 */
+		public Builder detectLeaks(final boolean detectLeaks) {
+			this.detectLeaks = detectLeaks;
+			return this;
 		}
 
-		return false;
+		public ZMTPFramingDecoder build() {
+			return new ZMTPFramingDecoder(this);
+		}
 	}
 }
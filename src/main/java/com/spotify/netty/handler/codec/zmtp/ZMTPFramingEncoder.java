@@ -19,18 +19,119 @@ package com.spotify.netty.handler.codec.zmtp;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
+import org.jetbrains.annotations.Nullable;
+
+import static com.spotify.netty.handler.codec.zmtp.ZMTPUtils.DELIMITER;
 
 /**
  * Netty encoder for ZMTP messages.
+ *
+ * @see ZMTPBatchingEncoder
  */
 public class ZMTPFramingEncoder extends OneToOneEncoder {
 
+	/**
+	 * Frames smaller than this are copied next to their header even when
+	 * wrapping frames, as a gathering write of a tiny buffer costs more than
+	 * copying it.
+	 */
+	private static final int WRAP_THRESHOLD = 512;
+
+	private static final int HEADER_CHUNK_SIZE = 8192;
+
 	private final AbstractZMTPSession session;
+	private final boolean wrapFrames;
+	private final ZMTPBufferArena arena;
+	private final ZMTPPendingWrites pendingWrites;
+
+	private ChannelBuffer headerChunk;
 
 	public ZMTPFramingEncoder(final AbstractZMTPSession session) {
+		this(session, false);
+	}
+
+	/**
+	 * Creates a new encoder, controlling whether frame data is copied into the
+	 * outgoing buffer or wrapped. When wrapping frames, only the frame headers
+	 * are written into a header buffer and the message is assembled as a
+	 * composite buffer over the original frame data, which is then written to
+	 * the socket using a gathering write. The frame data must not be modified
+	 * until the write has completed.
+	 *
+	 * @param session
+	 *            The session.
+	 * @param wrapFrames
+	 *            true if frame data should be wrapped, false if it should be
+	 *            copied.
+	 */
+	public ZMTPFramingEncoder(final AbstractZMTPSession session, final boolean wrapFrames) {
+		this(session, wrapFrames, null);
+	}
+
+	/**
+	 * Creates a new encoder that allocates outgoing buffers from an arena,
+	 * returning them to the arena when their writes have completed. Nothing
+	 * downstream of the encoder may retain the written buffers after
+	 * completing their write futures.
+	 *
+	 * @param session
+	 *            The session.
+	 * @param wrapFrames
+	 *            true if frame data should be wrapped, false if it should be
+	 *            copied.
+	 * @param arena
+	 *            The arena to allocate buffers from, or null to allocate new
+	 *            buffers.
+	 */
+	public ZMTPFramingEncoder(final AbstractZMTPSession session, final boolean wrapFrames,
+			@Nullable final ZMTPBufferArena arena) {
 		this.session = session;
+		this.wrapFrames = wrapFrames;
+		this.arena = arena;
+		this.pendingWrites = new ZMTPPendingWrites(session, new ZMTPPendingWrites.Writer() {
+			@Override
+			public void write(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
+				encodeDownstream(ctx, e);
+			}
+		});
+	}
+
+	/**
+	 * Holds messages written before the revision used with the remote peer is
+	 * known, writing them once it is.
+	 */
+	@Override
+	public void handleDownstream(final ChannelHandlerContext ctx, final ChannelEvent evt) throws Exception {
+		if (evt instanceof MessageEvent) {
+			final MessageEvent e = (MessageEvent) evt;
+			if (e.getMessage() instanceof ZMTPMessage && pendingWrites.hold(ctx, e)) {
+				return;
+			}
+		}
+		encodeDownstream(ctx, evt);
+	}
+
+	private void encodeDownstream(final ChannelHandlerContext ctx, final ChannelEvent evt) throws Exception {
+		if (arena == null || !(evt instanceof MessageEvent)) {
+			super.handleDownstream(ctx, evt);
+			return;
+		}
+
+		final MessageEvent e = (MessageEvent) evt;
+		if (!(e.getMessage() instanceof ZMTPMessage)) {
+			ctx.sendDownstream(evt);
+			return;
+		}
+
+		// Encode into the arena, releasing the buffer when the write completes
+		final ChannelBuffer buffer = encode((ZMTPMessage) e.getMessage(), e.getFuture());
+		Channels.write(ctx, e.getFuture(), buffer, e.getRemoteAddress());
 	}
 
 	@Override
@@ -40,16 +141,151 @@ public class ZMTPFramingEncoder extends OneToOneEncoder {
 			return o;
 		}
 
-		// TODO (dano): integrate with write batching to avoid buffer creation
-		// and reduce garbage
+		return encode((ZMTPMessage) o, null);
+	}
 
-		final ZMTPMessage message = (ZMTPMessage) o;
+	private ChannelBuffer encode(final ZMTPMessage message, @Nullable final ChannelFuture future) {
+		final ZMTPRevision revision = session.getRevision();
+		if (wrapFrames) {
+			return encodeWrapped(message, session.isEnveloped(), revision, future);
+		}
 
-		final ChannelBuffer buffer = ChannelBuffers.buffer(ZMTPUtils.messageSize(message, session.isEnveloped()));
+		final ChannelBuffer buffer = allocate(ZMTPUtils.messageSize(message, session.isEnveloped(), revision), future);
 
-		ZMTPUtils.writeMessage(message, buffer, session.isEnveloped());
+		ZMTPUtils.writeMessage(message, buffer, session.isEnveloped(), revision);
 
 		return buffer;
 	}
 
+	private ChannelBuffer allocate(final int size, @Nullable final ChannelFuture future) {
+		if (future != null) {
+			return arena.allocate(size, future);
+		}
+		return ChannelBuffers.buffer(size);
+	}
+
+	/**
+	 * Assembles a message as a composite buffer of frame headers and wrapped
+	 * frame data.
+	 */
+	private ChannelBuffer encodeWrapped(final ZMTPMessage message, final boolean enveloped,
+			final ZMTPRevision revision, @Nullable final ChannelFuture future) {
+		final ZMTPFrame[] envelope = message.envelope;
+		final int envelopeSize = message.envelopeSize;
+		final ZMTPFrame[] content = message.content;
+		final int contentSize = message.contentSize;
+
+		// Calculate the size of the headers and copied frames
+		int inlineSize = 0;
+		int wrappedFrames = 0;
+		if (enveloped) {
+			if (contentSize == 0) {
+				throw new ZMTPException("Cannot write enveloped message with no content");
+			}
+			for (int i = 0; i < envelopeSize; i++) {
+				final ZMTPFrame frame = envelope[i];
+				inlineSize += inlineSize(frame, revision);
+				wrappedFrames += isWrapped(frame) ? 1 : 0;
+			}
+			inlineSize += ZMTPUtils.frameSize(DELIMITER, revision);
+		}
+		for (int i = 0; i < contentSize; i++) {
+			final ZMTPFrame frame = content[i];
+			inlineSize += inlineSize(frame, revision);
+			wrappedFrames += isWrapped(frame) ? 1 : 0;
+		}
+
+		final ChannelBuffer headers = (future != null)
+				? arena.allocate(inlineSize, future)
+				: allocateHeaders(inlineSize);
+
+		// Small messages end up entirely in the header buffer
+		if (wrappedFrames == 0) {
+			ZMTPUtils.writeMessage(message, headers, enveloped, revision);
+			return headers;
+		}
+
+		final CompositeWriter writer = new CompositeWriter(headers, wrappedFrames, revision);
+		if (enveloped) {
+			for (int i = 0; i < envelopeSize; i++) {
+				writer.write(envelope[i], true);
+			}
+			writer.write(DELIMITER, true);
+		}
+		final int lastFrame = contentSize - 1;
+		for (int i = 0; i < contentSize; i++) {
+			writer.write(content[i], i < lastFrame);
+		}
+		return writer.finish();
+	}
+
+	private static boolean isWrapped(final ZMTPFrame frame) {
+		return frame.size() >= WRAP_THRESHOLD;
+	}
+
+	private static int inlineSize(final ZMTPFrame frame, final ZMTPRevision revision) {
+		return isWrapped(frame)
+				? ZMTPUtils.frameHeaderSize(frame, revision)
+				: ZMTPUtils.frameSize(frame, revision);
+	}
+
+	/**
+	 * Carves a region for frame headers out of a shared header chunk, to avoid
+	 * allocating a tiny buffer per message.
+	 */
+	private synchronized ChannelBuffer allocateHeaders(final int size) {
+		if (size > HEADER_CHUNK_SIZE / 4) {
+			return ChannelBuffers.buffer(size);
+		}
+		if (headerChunk == null || headerChunk.writableBytes() < size) {
+			headerChunk = ChannelBuffers.buffer(HEADER_CHUNK_SIZE);
+		}
+		final ChannelBuffer region = headerChunk.slice(headerChunk.writerIndex(), size);
+		headerChunk.writerIndex(headerChunk.writerIndex() + size);
+		region.clear();
+		return region;
+	}
+
+	/**
+	 * Writes frames into alternating header regions and wrapped frame data
+	 * components.
+	 */
+	private static class CompositeWriter {
+
+		private final ChannelBuffer headers;
+		private final ChannelBuffer[] components;
+		private final ZMTPRevision revision;
+		private int count;
+		private int mark;
+
+		CompositeWriter(final ChannelBuffer headers, final int wrappedFrames, final ZMTPRevision revision) {
+			this.headers = headers;
+			this.components = new ChannelBuffer[2 * wrappedFrames + 1];
+			this.revision = revision;
+		}
+
+		void write(final ZMTPFrame frame, final boolean more) {
+			ZMTPUtils.writeFrameHeader(frame, headers, more, revision);
+			if (isWrapped(frame)) {
+				components[count++] = headers.slice(mark, headers.writerIndex() - mark);
+				components[count++] = frame.getDataBuffer();
+				mark = headers.writerIndex();
+			} else {
+				frame.writeData(headers);
+			}
+		}
+
+		ChannelBuffer finish() {
+			if (headers.writerIndex() > mark) {
+				components[count++] = headers.slice(mark, headers.writerIndex() - mark);
+			}
+			if (count < components.length) {
+				final ChannelBuffer[] used = new ChannelBuffer[count];
+				System.arraycopy(components, 0, used, 0, count);
+				return ChannelBuffers.wrappedBuffer(true, used);
+			}
+			return ChannelBuffers.wrappedBuffer(true, components);
+		}
+	}
+
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * A ZMTP identity, usable as a hash key. It wraps the identity bytes without copying them, and
+ * computes the hash code once.
+ */
+public final class ZMTPIdentity {
+
+  private final ChannelBuffer data;
+  private final int hashCode;
+
+  private ZMTPIdentity(final ChannelBuffer data) {
+    this.data = data;
+    this.hashCode = ChannelBuffers.hashCode(data);
+  }
+
+  /**
+   * Create an identity from a byte array. The array must not be modified afterwards.
+   */
+  public static ZMTPIdentity from(final byte[] identity) {
+    return new ZMTPIdentity(ChannelBuffers.wrappedBuffer(identity));
+  }
+
+  /**
+   * Create an identity from the data of a frame, e.g. the first envelope frame of a message.
+   */
+  public static ZMTPIdentity from(final ZMTPFrame frame) {
+    final ChannelBuffer data = frame.getDataBuffer();
+    return new ZMTPIdentity(data == null ? ChannelBuffers.EMPTY_BUFFER : data);
+  }
+
+  /**
+   * Returns the identity as a frame, without copying it.
+   */
+  public ZMTPFrame toFrame() {
+    return ZMTPFrame.wrap(data);
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    final ZMTPIdentity that = (ZMTPIdentity) o;
+
+    return hashCode == that.hashCode && ChannelBuffers.equals(data, that.data);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    final byte[] bytes = new byte[data.readableBytes()];
+    data.getBytes(data.readerIndex(), bytes);
+    return "ZMTPIdentity{" + ZMTPUtils.toString(bytes) + '}';
+  }
+}
@@ -21,12 +21,43 @@ package com.spotify.netty.handler.codec.zmtp;
  */
 public class ZMTPIncomingMessage {
 
-  private final AbstractZMTPSession session;
-  private final ZMTPMessage message;
+  private AbstractZMTPSession session;
+  private ZMTPMessage message;
+
+  /**
+   * Whether this message belongs to a {@link ZMTPMessagePool}.
+   */
+  final boolean pooled;
 
   public ZMTPIncomingMessage(final AbstractZMTPSession session, final ZMTPMessage message) {
     this.session = session;
     this.message = message;
+    this.pooled = false;
+  }
+
+  /**
+   * Create an empty message for a pool.
+   */
+  ZMTPIncomingMessage() {
+    this.pooled = true;
+  }
+
+  void set(final AbstractZMTPSession session, final ZMTPMessage message) {
+    this.session = session;
+    this.message = message;
+  }
+
+  /**
+   * Return this message, along with the {@link ZMTPMessage} and its frames, to the pool of the
+   * current thread, if it was decoded in pooled mode. None of them must be used afterwards. Does
+   * nothing for other messages.
+   *
+   * @throws IllegalStateException if the message was already released.
+   */
+  public void release() {
+    if (pooled) {
+      ZMTPMessagePool.get().release(this);
+    }
   }
 
   /**
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+/**
+ * Limits on the size of received frames and messages, checked as soon as the header of a frame is
+ * decoded, so that a peer cannot make us buffer more than the limits allow.
+ */
+public class ZMTPLimits {
+
+  /**
+   * What to do with a message that exceeds a limit.
+   */
+  public enum Action {
+    /**
+     * Close the channel, discarding any data received after the message.
+     */
+    CLOSE,
+
+    /**
+     * Skip the message, discarding its data as it arrives.
+     */
+    DISCARD,
+
+    /**
+     * Throw a {@link ZMTPLimitException}, skipping the message like {@link #DISCARD} if parsing
+     * continues.
+     */
+    FAIL
+  }
+
+  /**
+   * No limits.
+   */
+  public static final ZMTPLimits NONE = builder().build();
+
+  private final long maxFrameSize;
+  private final int maxFrames;
+  private final long maxMessageSize;
+  private final Action action;
+
+  private ZMTPLimits(final Builder builder) {
+    this.maxFrameSize = builder.maxFrameSize;
+    this.maxFrames = builder.maxFrames;
+    this.maxMessageSize = builder.maxMessageSize;
+    this.action = builder.action;
+  }
+
+  /**
+   * @return A builder of limits.
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public long getMaxFrameSize() {
+    return maxFrameSize;
+  }
+
+  public int getMaxFrames() {
+    return maxFrames;
+  }
+
+  public long getMaxMessageSize() {
+    return maxMessageSize;
+  }
+
+  public Action getAction() {
+    return action;
+  }
+
+  /**
+   * Check the header of a frame of a message against the limits.
+   *
+   * @param frameSize   The size of the frame.
+   * @param frames      The number of frames of the message, including this frame.
+   * @param messageSize The size of the message, including this frame.
+   * @return A description of the limit exceeded, or null if within the limits.
+   */
+  String check(final long frameSize, final int frames, final long messageSize) {
+    if (frameSize > maxFrameSize) {
+      return "Frame size " + frameSize + " exceeds limit " + maxFrameSize;
+    }
+    if (frames > maxFrames) {
+      return "Message frame count exceeds limit " + maxFrames;
+    }
+    if (messageSize > maxMessageSize) {
+      return "Message size " + messageSize + " exceeds limit " + maxMessageSize;
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return "ZMTPLimits{" +
+           "maxFrameSize=" + maxFrameSize +
+           ", maxFrames=" + maxFrames +
+           ", maxMessageSize=" + maxMessageSize +
+           ", action=" + action +
+           '}';
+  }
+
+  /**
+   * Builder for limits.
+   */
+  public static class Builder {
+
+    private long maxFrameSize = Long.MAX_VALUE;
+    private int maxFrames = Integer.MAX_VALUE;
+    private long maxMessageSize = Long.MAX_VALUE;
+    private Action action = Action.FAIL;
+
+    protected Builder() {
+    }
+
+    /**
+     * Set the largest size in bytes of a frame.
+     */
+    public Builder maxFrameSize(final long maxFrameSize) {
+      this.maxFrameSize = maxFrameSize;
+      return this;
+    }
+
+    /**
+     * Set the largest number of frames of a message, including any envelope and delimiter.
+     */
+    public Builder maxFrames(final int maxFrames) {
+      this.maxFrames = maxFrames;
+      return this;
+    }
+
+    /**
+     * Set the largest total size in bytes of the frames of a message.
+     */
+    public Builder maxMessageSize(final long maxMessageSize) {
+      this.maxMessageSize = maxMessageSize;
+      return this;
+    }
+
+    /**
+     * Set what to do with a message that exceeds a limit. Defaults to {@link Action#FAIL}.
+     */
+    public Builder action(final Action action) {
+      this.action = action;
+      return this;
+    }
+
+    public ZMTPLimits build() {
+      return new ZMTPLimits(this);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributes messages over a group of connected peers, like a ZeroMQ DEALER or PUSH socket, so
+ * that several channels can be used as one.
+ *
+ * Add a handler created by {@link #newHandler} to the pipeline of each channel. The session is
+ * part of the group while its channel is connected. Peers whose channels are not writable are
+ * skipped as long as there is a writable one.
+ */
+public class ZMTPLoadBalancer {
+
+  /**
+   * How a peer is chosen for each message.
+   */
+  public enum Strategy {
+    /**
+     * Take turns.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Choose the peer with the fewest bytes sent through the group that are not yet written to
+     * the socket.
+     */
+    LEAST_LOADED
+  }
+
+  private final List<Peer> peers = new CopyOnWriteArrayList<Peer>();
+  private final AtomicInteger next = new AtomicInteger();
+  private final Strategy strategy;
+
+  /**
+   * Create a round robin load balancer.
+   */
+  public ZMTPLoadBalancer() {
+    this(Strategy.ROUND_ROBIN);
+  }
+
+  /**
+   * Create a load balancer.
+   *
+   * @param strategy How a peer is chosen for each message.
+   */
+  public ZMTPLoadBalancer(final Strategy strategy) {
+    this.strategy = strategy;
+  }
+
+  /**
+   * Create a handler that adds a session to this group while its channel is connected.
+   *
+   * @param session The session of the channel that the handler is added to.
+   * @return The handler.
+   */
+  public ChannelUpstreamHandler newHandler(final AbstractZMTPSession session) {
+    return new Handler(new Peer(session));
+  }
+
+  /**
+   * Write a message to one of the peers.
+   *
+   * @param message The message to send.
+   * @return The future of the write, or null if there are no connected peers.
+   */
+  public ChannelFuture send(final ZMTPMessage message) {
+    final Peer peer = strategy == Strategy.LEAST_LOADED ? leastLoaded() : roundRobin();
+    if (peer == null) {
+      return null;
+    }
+
+    final Channel channel = peer.session.getChannel();
+    if (strategy != Strategy.LEAST_LOADED) {
+      return channel.write(message);
+    }
+
+    final AbstractZMTPSession session = peer.session;
+    final int size = ZMTPUtils.messageSize(message, session.isEnveloped(), session.getRevision());
+    peer.pendingBytes.addAndGet(size);
+    final ChannelFuture future = channel.write(message);
+    future.addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(final ChannelFuture future) {
+        peer.pendingBytes.addAndGet(-size);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Returns the number of connected peers.
+   */
+  public int size() {
+    return peers.size();
+  }
+
+  private Peer roundRobin() {
+    final Object[] snapshot = peers.toArray();
+    final int n = snapshot.length;
+    if (n == 0) {
+      return null;
+    }
+
+    final int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+    for (int i = 0; i < n; i++) {
+      final Peer peer = (Peer) snapshot[(start + i) % n];
+      if (peer.session.getChannel().isWritable()) {
+        return peer;
+      }
+    }
+    return (Peer) snapshot[start];
+  }
+
+  private Peer leastLoaded() {
+    Peer best = null;
+    boolean bestWritable = false;
+    long bestPending = Long.MAX_VALUE;
+    for (final Peer peer : peers) {
+      final boolean writable = peer.session.getChannel().isWritable();
+      final long pending = peer.pendingBytes.get();
+      if (writable && !bestWritable || writable == bestWritable && pending < bestPending) {
+        best = peer;
+        bestWritable = writable;
+        bestPending = pending;
+      }
+    }
+    return best;
+  }
+
+  private static class Peer {
+
+    private final AbstractZMTPSession session;
+    private final AtomicLong pendingBytes = new AtomicLong();
+
+    Peer(final AbstractZMTPSession session) {
+      this.session = session;
+    }
+  }
+
+  private class Handler extends SimpleChannelUpstreamHandler {
+
+    private final Peer peer;
+
+    Handler(final Peer peer) {
+      this.peer = peer;
+    }
+
+    @Override
+    public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+        throws Exception {
+      peers.add(peer);
+      super.channelConnected(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+        throws Exception {
+      peers.remove(peer);
+      super.channelClosed(ctx, e);
+    }
+  }
+}
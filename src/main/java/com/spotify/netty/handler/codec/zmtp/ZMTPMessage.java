@@ -15,37 +15,156 @@
  */
 package com.spotify.netty.handler.codec.zmtp;
 
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
+/**
+ * A ZMTP message, consisting of envelope and content frames.
+ *
+ * The frames are held in arrays of their exact size, so that a message with a single content frame
+ * and no envelope only needs one small array besides the frames themselves. Frames added through
+ * the lists returned by {@link #getEnvelope()} and {@link #getContent()} grow the arrays as needed.
+ */
 public class ZMTPMessage {
 
-  List<ZMTPFrame> envelope = new ArrayList<ZMTPFrame>();
-  List<ZMTPFrame> content = new ArrayList<ZMTPFrame>();
+  static final ZMTPFrame[] NO_FRAMES = new ZMTPFrame[0];
+
+  /**
+   * The envelope and content frames. Only the first {@code envelopeSize} and {@code contentSize}
+   * elements are used, as pooled messages reuse their arrays.
+   */
+  ZMTPFrame[] envelope;
+  int envelopeSize;
+  ZMTPFrame[] content;
+  int contentSize;
+
+  /**
+   * Whether this message belongs to a {@link ZMTPMessagePool}, whether it is in use, and its leak
+   * tracker if leaks are detected.
+   */
+  final boolean pooled;
+  boolean inUse;
+  Object leak;
 
   /**
    * Creates a new ZMTPMessage from envelope and content frames.
    *
-   * @param envelope The envelope frames. Must not be modified again.
-   * @param content  The content frames. Must not be modified again.
+   * @param envelope The envelope frames.
+   * @param content  The content frames.
    */
   public ZMTPMessage(final List<ZMTPFrame> envelope, final List<ZMTPFrame> content) {
+    this(toArray(envelope), toArray(content));
+  }
+
+  /**
+   * Creates a new ZMTPMessage from arrays of envelope and content frames, which must not be
+   * modified again.
+   */
+  ZMTPMessage(final ZMTPFrame[] envelope, final ZMTPFrame[] content) {
     this.envelope = envelope;
+    this.envelopeSize = envelope.length;
     this.content = content;
+    this.contentSize = content.length;
+    this.pooled = false;
+  }
+
+  /**
+   * Create an empty message for a pool.
+   */
+  ZMTPMessage() {
+    this.envelope = NO_FRAMES;
+    this.content = NO_FRAMES;
+    this.pooled = true;
+  }
+
+  /**
+   * Creates a new ZMTPMessage without an envelope.
+   *
+   * @param content The content frames. Must not be modified again.
+   */
+  public static ZMTPMessage fromContent(final ZMTPFrame... content) {
+    return new ZMTPMessage(NO_FRAMES, content);
+  }
+
+  /**
+   * Set the frames of a pooled message, reusing its arrays if they are large enough.
+   */
+  void setFrames(final List<ZMTPFrame> envelope, final List<ZMTPFrame> content) {
+    this.envelope = copy(envelope, this.envelope);
+    this.envelopeSize = envelope.size();
+    this.content = copy(content, this.content);
+    this.contentSize = content.size();
+  }
+
+  /**
+   * Prepend a frame to the envelope, reusing the envelope array of a pooled message if it has room.
+   */
+  void prependEnvelope(final ZMTPFrame frame) {
+    final ZMTPFrame[] target = (pooled && envelope.length > envelopeSize)
+                               ? envelope : new ZMTPFrame[envelopeSize + 1];
+    System.arraycopy(envelope, 0, target, 1, envelopeSize);
+    target[0] = frame;
+    envelope = target;
+    envelopeSize++;
+  }
+
+  /**
+   * Remove the first envelope frame in place, returning it to the pool if it was taken from it.
+   */
+  void removeEnvelopeFrame() {
+    final ZMTPFrame first = envelope[0];
+    System.arraycopy(envelope, 1, envelope, 0, envelopeSize - 1);
+    envelope[--envelopeSize] = null;
+    if (first.pooled) {
+      ZMTPMessagePool.get().release(first);
+    }
+  }
+
+  static ZMTPFrame[] toArray(final List<ZMTPFrame> frames) {
+    return frames.isEmpty() ? NO_FRAMES : frames.toArray(new ZMTPFrame[frames.size()]);
+  }
+
+  @SuppressWarnings("ForLoopReplaceableByForEach")
+  private static ZMTPFrame[] copy(final List<ZMTPFrame> frames, final ZMTPFrame[] array) {
+    final int n = frames.size();
+    final ZMTPFrame[] target = array.length < n ? new ZMTPFrame[n] : array;
+    for (int i = 0; i < n; i++) {
+      target[i] = frames.get(i);
+    }
+    return target;
   }
 
   /**
-   * Return the envelope
+   * Return this message and its frames to the pool of the current thread, if it was decoded in
+   * pooled mode. The message and its frames must not be used afterwards. Does
+   * nothing for other messages.
+   *
+   * @throws IllegalStateException if the message was already released.
+   */
+  public void release() {
+    if (pooled) {
+      ZMTPMessagePool.get().release(this);
+    }
+  }
+
+  /**
+   * Return the envelope.
+   *
+   * @return The envelope frames, as a list backed by this message, so that changes to the list are
+   *         reflected in the message.
    */
   public List<ZMTPFrame> getEnvelope() {
-    return envelope;
+    return new Frames(true);
   }
 
   /**
-   * @return Current list of content in the message
+   * @return Current content in the message, as a list backed by this message, so that changes to
+   *         the list are reflected in the message.
    */
   public List<ZMTPFrame> getContent() {
-    return content;
+    return new Frames(false);
   }
 
   /**
@@ -55,11 +174,11 @@ public class ZMTPMessage {
    * @return ZMTPFrame identified by frameId
    */
   public ZMTPFrame getContentFrame(final int frameId) {
-    if (frameId < 0 || frameId >= content.size()) {
+    if (frameId < 0 || frameId >= contentSize) {
       throw new IllegalArgumentException("Invalid frame id " + frameId);
     }
 
-    return content.get(frameId);
+    return content[frameId];
   }
 
   /**
@@ -68,8 +187,8 @@ public class ZMTPMessage {
   @Override
   public String toString() {
     return "ZMTPMessage{" +
-           "content=" + content +
-           ", envelope=" + envelope +
+           "content=" + getContent() +
+           ", envelope=" + getEnvelope() +
            '}';
   }
 
@@ -84,20 +203,117 @@ public class ZMTPMessage {
 
     final ZMTPMessage that = (ZMTPMessage) o;
 
-    if (content != null ? !content.equals(that.content) : that.content != null) {
+    return equals(content, contentSize, that.content, that.contentSize) &&
+           equals(envelope, envelopeSize, that.envelope, that.envelopeSize);
+  }
+
+  private static boolean equals(final ZMTPFrame[] a, final int aSize,
+                                final ZMTPFrame[] b, final int bSize) {
+    if (aSize != bSize) {
       return false;
     }
-    if (envelope != null ? !envelope.equals(that.envelope) : that.envelope != null) {
-      return false;
+    for (int i = 0; i < aSize; i++) {
+      if (a[i] != null ? !a[i].equals(b[i]) : b[i] != null) {
+        return false;
+      }
     }
-
     return true;
   }
 
   @Override
   public int hashCode() {
-    int result = content != null ? content.hashCode() : 0;
-    result = 31 * result + (envelope != null ? envelope.hashCode() : 0);
+    int result = hashCode(content, contentSize);
+    result = 31 * result + hashCode(envelope, envelopeSize);
     return result;
   }
+
+  /**
+   * Computes the hash code of frames in an array the same way as for a list of them.
+   */
+  private static int hashCode(final ZMTPFrame[] frames, final int size) {
+    int result = 1;
+    for (int i = 0; i < size; i++) {
+      result = 31 * result + (frames[i] == null ? 0 : frames[i].hashCode());
+    }
+    return result;
+  }
+
+  /**
+   * A view of the envelope or content frames of this message, reading and writing through to the
+   * frame arrays. Adding a frame to a full array replaces it with a larger one.
+   */
+  private class Frames extends AbstractList<ZMTPFrame> implements RandomAccess {
+
+    private final boolean isEnvelope;
+
+    Frames(final boolean isEnvelope) {
+      this.isEnvelope = isEnvelope;
+    }
+
+    @Override
+    public ZMTPFrame get(final int index) {
+      checkIndex(index, size());
+      return frames()[index];
+    }
+
+    @Override
+    public ZMTPFrame set(final int index, final ZMTPFrame frame) {
+      checkIndex(index, size());
+      final ZMTPFrame[] frames = frames();
+      final ZMTPFrame previous = frames[index];
+      frames[index] = frame;
+      return previous;
+    }
+
+    @Override
+    public void add(final int index, final ZMTPFrame frame) {
+      final int size = size();
+      checkIndex(index, size + 1);
+      ZMTPFrame[] frames = frames();
+      if (size == frames.length) {
+        frames = Arrays.copyOf(frames, Math.max(4, 2 * size));
+      }
+      System.arraycopy(frames, index, frames, index + 1, size - index);
+      frames[index] = frame;
+      update(frames, size + 1);
+    }
+
+    @Override
+    public ZMTPFrame remove(final int index) {
+      final int size = size();
+      checkIndex(index, size);
+      final ZMTPFrame[] frames = frames();
+      final ZMTPFrame previous = frames[index];
+      System.arraycopy(frames, index + 1, frames, index, size - index - 1);
+      frames[size - 1] = null;
+      update(frames, size - 1);
+      return previous;
+    }
+
+    @Override
+    public int size() {
+      return isEnvelope ? envelopeSize : contentSize;
+    }
+
+    private ZMTPFrame[] frames() {
+      return isEnvelope ? envelope : content;
+    }
+
+    private void update(final ZMTPFrame[] frames, final int size) {
+      if (isEnvelope) {
+        envelope = frames;
+        envelopeSize = size;
+      } else {
+        content = frames;
+        contentSize = size;
+      }
+      modCount++;
+    }
+
+    private void checkIndex(final int index, final int size) {
+      if (index < 0 || index >= size) {
+        throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+      }
+    }
+  }
 }
@@ -17,36 +17,196 @@
 package com.spotify.netty.handler.codec.zmtp;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.List;
 
+import static com.spotify.netty.handler.codec.zmtp.ZMTPUtils.COMMAND_FLAG;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPUtils.LONG_FLAG;
 import static com.spotify.netty.handler.codec.zmtp.ZMTPUtils.MORE_FLAG;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import static org.jboss.netty.buffer.ChannelBuffers.swapLong;
 
 /**
  * Decodes ZMTP messages from a channel buffer, reading and accumulating frame by frame, keeping
  * state and updating buffer reader indices as necessary.
+ *
+ * Parsing is resumable: completed frames and the decoded header of a partially received frame are
+ * kept between calls and never parsed again, so each byte is only examined once no matter how many
+ * reads a message arrives in.
+ *
+ * ZMTP/3.0 command frames are skipped, as they are not part of any message.
+ *
+ * Given subscriptions, messages whose first content frame does not match any of them are skipped
+ * without creating frames, discarding their data as it arrives.
+ *
+ * Given a streaming threshold, larger frames are not accumulated, but returned by {@link
+ * #parseStreaming} as a {@link ZMTPFrameStart} followed by {@link ZMTPFrameChunk}s as the data
+ * arrives, bounding the memory needed regardless of the size of frames.
+ *
+ * Given {@link ZMTPLimits}, the size of each frame and of the message is checked as soon as the
+ * frame header is decoded, before any of the frame data is buffered.
+ *
+ * In pooled mode, messages and frames are taken from the {@link ZMTPMessagePool} of the current
+ * thread, and must be returned to it with {@link ZMTPMessage#release}.
  */
 public class ZMTPMessageParser {
 
   private final boolean enveloped;
+  private final ZMTPRevision revision;
+  private final ZMTPSubscriptions subscriptions;
+  private final int streamThreshold;
+  private final ZMTPLimits limits;
+  private final boolean pooled;
+  private final boolean detectLeaks;
 
-  private List<ZMTPFrame> envelope = new ArrayList<ZMTPFrame>();
-  private List<ZMTPFrame> content = new ArrayList<ZMTPFrame>();
+  /**
+   * The frames of the current message, which are copied into each message returned.
+   */
+  private final List<ZMTPFrame> envelope = new ArrayList<ZMTPFrame>(4);
+  private final List<ZMTPFrame> content = new ArrayList<ZMTPFrame>();
 
   private List<ZMTPFrame> part;
   private boolean hasMore;
 
+  /**
+   * The size of the frame whose header has been consumed, or -1 if expecting a frame header.
+   */
+  private long frameSize = -1;
+  private int frameFlags;
+
+  /**
+   * Whether the rest of the current message is being skipped.
+   */
+  private boolean discarding;
+
+  /**
+   * Whether the first content frame of the current message matched the subscriptions.
+   */
+  private boolean subscribed;
+
+  /**
+   * The number of frames and total size of the current message so far, for checking limits.
+   */
+  private int frames;
+  private long messageSize;
+
+  /**
+   * The remaining size of the frame being streamed, or -1 if not streaming a frame.
+   */
+  private long streamRemaining = -1;
+
+  /**
+   * Create a parser of messages using ZMTP/1.0 framing.
+   */
   public ZMTPMessageParser(final boolean enveloped) {
+    this(enveloped, ZMTPRevision.ZMTP_10);
+  }
+
+  /**
+   * Create a parser of messages using the framing of a protocol revision. ZMTP/2.0 and ZMTP/3.0
+   * share the same framing, which differs from ZMTP/1.0 framing.
+   *
+   * @param enveloped Whether messages have an envelope.
+   * @param revision  The protocol revision.
+   */
+  public ZMTPMessageParser(final boolean enveloped, final ZMTPRevision revision) {
+    this(enveloped, revision, null);
+  }
+
+  /**
+   * Create a parser of messages using the framing of a protocol revision, only returning messages
+   * whose first content frame matches a subscription.
+   *
+   * @param enveloped     Whether messages have an envelope.
+   * @param revision      The protocol revision.
+   * @param subscriptions The subscriptions, or null to return all messages.
+   */
+  public ZMTPMessageParser(final boolean enveloped, final ZMTPRevision revision,
+                           @Nullable final ZMTPSubscriptions subscriptions) {
+    this(enveloped, revision, subscriptions, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Create a parser of messages that streams frames larger than a threshold, which must be parsed
+   * with {@link #parseStreaming}.
+   *
+   * @param enveloped       Whether messages have an envelope.
+   * @param revision        The protocol revision.
+   * @param subscriptions   The subscriptions, or null to return all messages.
+   * @param streamThreshold The size above which frames are streamed.
+   */
+  public ZMTPMessageParser(final boolean enveloped, final ZMTPRevision revision,
+                           @Nullable final ZMTPSubscriptions subscriptions,
+                           final int streamThreshold) {
+    this(enveloped, revision, subscriptions, streamThreshold, ZMTPLimits.NONE);
+  }
+
+  /**
+   * Create a parser of messages that streams frames larger than a threshold and enforces limits
+   * on the size of messages.
+   *
+   * @param enveloped       Whether messages have an envelope.
+   * @param revision        The protocol revision.
+   * @param subscriptions   The subscriptions, or null to return all messages.
+   * @param streamThreshold The size above which frames are streamed, or {@link Integer#MAX_VALUE}
+   *                        to not stream frames.
+   * @param limits          The limits on received frames and messages.
+   */
+  public ZMTPMessageParser(final boolean enveloped, final ZMTPRevision revision,
+                           @Nullable final ZMTPSubscriptions subscriptions,
+                           final int streamThreshold, final ZMTPLimits limits) {
+    this(enveloped, revision, subscriptions, streamThreshold, limits, false, false);
+  }
+
+  /**
+   * Create a parser that optionally takes messages and frames from a pool.
+   *
+   * @param pooled      Whether to take messages and frames from the pool of the current thread.
+   * @param detectLeaks Whether to report pooled messages that are never released.
+   */
+  ZMTPMessageParser(final boolean enveloped, final ZMTPRevision revision,
+                    @Nullable final ZMTPSubscriptions subscriptions,
+                    final int streamThreshold, final ZMTPLimits limits,
+                    final boolean pooled, final boolean detectLeaks) {
+    if (streamThreshold < 0) {
+      throw new IllegalArgumentException("streamThreshold: " + streamThreshold);
+    }
     this.enveloped = enveloped;
+    this.revision = revision;
+    this.subscriptions = subscriptions;
+    this.streamThreshold = streamThreshold;
+    this.limits = limits;
+    this.pooled = pooled;
+    this.detectLeaks = detectLeaks;
     reset();
   }
 
   private void reset() {
-    envelope = new ArrayList<ZMTPFrame>(4);
-    content = new ArrayList<ZMTPFrame>();
+    envelope.clear();
+    content.clear();
     part = enveloped ? envelope : content;
     hasMore = true;
+    subscribed = false;
+    frames = 0;
+    messageSize = 0;
+  }
+
+  /**
+   * Returns the frames parsed so far as a message, taken from the pool in pooled mode.
+   */
+  private ZMTPMessage takeMessage() {
+    if (!pooled) {
+      return new ZMTPMessage(ZMTPMessage.toArray(envelope), ZMTPMessage.toArray(content));
+    }
+    final ZMTPMessage message = ZMTPMessagePool.get().message();
+    message.setFrames(envelope, content);
+    if (detectLeaks) {
+      ZMTPMessagePool.track(message);
+    }
+    return message;
   }
 
   /**
@@ -56,19 +216,85 @@ public class ZMTPMessageParser {
    *
    * @param buffer Buffer with data
    * @return A {@link ZMTPMessage} if it was completely parsed, otherwise null.
+   * @throws IllegalStateException if the parser streams large frames.
    */
   public ZMTPMessage parse(final ChannelBuffer buffer) {
+    if (streamThreshold != Integer.MAX_VALUE) {
+      throw new IllegalStateException("Frames are streamed, use parseStreaming");
+    }
+    return (ZMTPMessage) parseStreaming(buffer);
+  }
+
+  /**
+   * Parses as many whole frames from the buffer as possible, until the final frame is encountered
+   * or a frame larger than the streaming threshold is started, or returns the next chunk of a
+   * streamed frame.
+   *
+   * @param buffer Buffer with data
+   * @return A {@link ZMTPMessage} if it was completely parsed, a {@link ZMTPFrameStart} or {@link
+   *         ZMTPFrameChunk} if streaming a frame, otherwise null.
+   */
+  public Object parseStreaming(final ChannelBuffer buffer) {
     while (buffer.readableBytes() > 0) {
-      buffer.markReaderIndex();
+      if (streamRemaining != -1) {
+        return parseChunk(buffer);
+      }
+
+      if (discarding) {
+        if (!discard(buffer)) {
+          break;
+        }
+        continue;
+      }
+
+      final int headerIndex = buffer.readerIndex();
+      if (frameSize == -1) {
+        if (!parseFrameHeader(buffer)) {
+          break;
+        }
+        if (!checkLimits()) {
+          discarding = true;
+          continue;
+        }
+      }
+
+      if (subscriptions != null && !subscribed && part == content && !isCommand()) {
+        // Check the first content frame against the subscriptions before slicing it, which only
+        // needs as much of the frame as the longest prefix
+        final ZMTPSubscriptions.Snapshot prefixes = subscriptions.snapshot();
+        final int readable = buffer.readableBytes();
+        if (Math.min(frameSize, prefixes.maxPrefixLength()) > readable) {
+          // Leave the header to be parsed again along with the prefix, so that a streamed frame is
+          // started by a call that consumes data, and nothing is known about the frame until then
+          unparseFrameHeader(buffer, headerIndex);
+          break;
+        }
+        final int length = (int) Math.min(frameSize, readable);
+        if (!prefixes.matches(buffer, buffer.readerIndex(), length)) {
+          discarding = true;
+          continue;
+        }
+        subscribed = true;
+      }
+
+      if (frameSize > streamThreshold && !isCommand()) {
+        return startStream();
+      }
 
       final ZMTPFrame frame = parseFrame(buffer);
       if (frame == null) {
-        buffer.resetReaderIndex();
         break;
       }
 
+      // Skip commands
+      if (isCommand()) {
+        recycle(frame);
+        continue;
+      }
+
       // Skip the delimiter
       if (!frame.hasData() && part == envelope) {
+        recycle(frame);
         part = content;
         continue;
       }
@@ -76,7 +302,7 @@ public class ZMTPMessageParser {
       part.add(frame);
 
       if (!hasMore) {
-        final ZMTPMessage message = new ZMTPMessage(envelope, content);
+        final ZMTPMessage message = takeMessage();
         reset();
         return message;
       }
@@ -86,33 +312,244 @@ public class ZMTPMessageParser {
   }
 
   /**
-   * Attempt to parse a ZMTP frame.
+   * Check the frame whose header has been consumed against the limits.
+   *
+   * @return true if within the limits, false if the message should be discarded.
+   * @throws ZMTPLimitException if a limit is exceeded and the action is not to discard, after
+   *                            which the message is discarded by later calls.
+   */
+  private boolean checkLimits() {
+    final String exceeded;
+    if (isCommand()) {
+      exceeded = limits.check(frameSize, 0, 0);
+    } else {
+      frames++;
+      messageSize += frameSize;
+      exceeded = limits.check(frameSize, frames, messageSize);
+    }
+    if (exceeded == null) {
+      return true;
+    }
+    if (limits.getAction() == ZMTPLimits.Action.DISCARD) {
+      return false;
+    }
+    // Never return the message, even if parsing continues after the exception
+    discarding = true;
+    throw new ZMTPLimitException(exceeded);
+  }
+
+  /**
+   * Start streaming the frame whose header has been consumed, returning the frames preceding it.
+   * The frames following it are parsed as if they were a message of their own.
+   */
+  private ZMTPFrameStart startStream() {
+    hasMore = (frameFlags & MORE_FLAG) == MORE_FLAG;
+    streamRemaining = frameSize;
+    frameSize = -1;
+
+    final ZMTPFrameStart start = new ZMTPFrameStart(takeMessage(), streamRemaining);
+    envelope.clear();
+    content.clear();
+    return start;
+  }
+
+  /**
+   * Returns the data of the streamed frame that is available.
+   */
+  private ZMTPFrameChunk parseChunk(final ChannelBuffer buffer) {
+    final int size = (int) Math.min(streamRemaining, buffer.readableBytes());
+    final ChannelBuffer data = ChannelBuffers.unmodifiableBuffer(buffer.readSlice(size));
+    streamRemaining -= size;
+    if (streamRemaining > 0) {
+      return new ZMTPFrameChunk(data, false, false);
+    }
+
+    streamRemaining = -1;
+    final boolean more = hasMore;
+    if (!more) {
+      reset();
+    }
+    return new ZMTPFrameChunk(data, true, more);
+  }
+
+  /**
+   * Skip the rest of the current message, starting with the frame whose header has been consumed.
+   *
+   * @return true if the whole message was skipped, false if more data is needed.
+   */
+  private boolean discard(final ChannelBuffer buffer) {
+    while (true) {
+      if (frameSize == -1 && !parseFrameHeader(buffer)) {
+        return false;
+      }
+
+      final int skip = (int) Math.min(frameSize, buffer.readableBytes());
+      buffer.skipBytes(skip);
+      frameSize -= skip;
+      if (frameSize > 0) {
+        return false;
+      }
+      frameSize = -1;
+
+      if ((frameFlags & MORE_FLAG) == 0) {
+        // The frames parsed so far have not been handed out, so the lists can be reused
+        discarding = false;
+        if (pooled) {
+          final ZMTPMessagePool pool = ZMTPMessagePool.get();
+          pool.release(envelope);
+          pool.release(content);
+        } else {
+          envelope.clear();
+          content.clear();
+        }
+        part = enveloped ? envelope : content;
+        hasMore = true;
+        subscribed = false;
+        frames = 0;
+        messageSize = 0;
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Attempt to parse a ZMTP frame. The frame header is consumed as soon as it is complete, so when
+   * more data is needed the buffer must be passed again with the reader index left as is.
    *
    * @param buffer Buffer with data.
    * @return A frame if sucessfull, null if more data is needed.
    */
   public ZMTPFrame parseFrame(final ChannelBuffer buffer) {
-    // Try to parse a ZMTP frame
-    long len = ZMTPUtils.decodeLength(buffer);
-    if (len == -1) {
+    if (frameSize == -1 && !parseFrameHeader(buffer)) {
       return null;
-    } else if (len == 0) {
-      throw new ZMTPException("Received frame with zero length");
     }
 
-    if (len > Integer.MAX_VALUE) {
-      throw new ZMTPException("Received too large frame: " + len);
+    // Larger frames can only be discarded or streamed
+    if (frameSize > Integer.MAX_VALUE) {
+      throw new ZMTPException("Received too large frame: " + frameSize);
     }
 
-    if ((int) len > buffer.readableBytes()) {
+    if ((int) frameSize > buffer.readableBytes()) {
       // Wait for more data to decode
       return null;
     }
 
-    // Read if we have more frames from flag byte
-    hasMore = (buffer.readByte() & MORE_FLAG) == MORE_FLAG;
-    len--;
+    hasMore = (frameFlags & MORE_FLAG) == MORE_FLAG;
+    final int size = (int) frameSize;
+    frameSize = -1;
+
+    if (pooled) {
+      return ZMTPMessagePool.get().frame(buffer, size);
+    }
+    return ZMTPFrame.slice(buffer, size);
+  }
+
+  /**
+   * Return a frame that is not part of a message to the pool.
+   */
+  private void recycle(final ZMTPFrame frame) {
+    if (pooled) {
+      ZMTPMessagePool.get().release(frame);
+    }
+  }
+
+  /**
+   * Returns the size of the frame whose header has been consumed and whose data is awaited, i.e.
+   * the number of bytes needed from the reader index to parse it. Frames that are discarded,
+   * streamed or not yet matched against the subscriptions are not awaited as a whole.
+   *
+   * @return The size of the frame, or -1 if not awaiting the data of a frame.
+   */
+  long pendingFrameSize() {
+    if (discarding || frameSize == -1) {
+      return -1;
+    }
+    if (isCommand()) {
+      return frameSize;
+    }
+    if (frameSize > streamThreshold || (subscriptions != null && !subscribed && part == content)) {
+      return -1;
+    }
+    return frameSize;
+  }
+
+  /**
+   * Whether the last frame returned by {@link #parseFrame} was a command rather than part of a
+   * message.
+   */
+  boolean isCommand() {
+    return (frameFlags & COMMAND_FLAG) != 0;
+  }
+
+  /**
+   * Consume a frame header if it is complete, storing the size and flags of the frame.
+   *
+   * @return true if the header was consumed, false if more data is needed.
+   */
+  private boolean parseFrameHeader(final ChannelBuffer buffer) {
+    final int index = buffer.readerIndex();
+    final int readable = buffer.readableBytes();
+    if (readable < 2) {
+      return false;
+    }
+
+    final int headerSize;
+    final int flags;
+    final long size;
+    if (revision != ZMTPRevision.ZMTP_10) {
+      // Flags, followed by a one byte size or an eight byte size if the long flag is set
+      flags = buffer.getUnsignedByte(index);
+      if ((flags & LONG_FLAG) == 0) {
+        headerSize = 1 + 1;
+        size = buffer.getUnsignedByte(index + 1);
+      } else {
+        headerSize = 1 + 8;
+        if (readable < headerSize) {
+          return false;
+        }
+        size = getLong(buffer, index + 1);
+      }
+    } else {
+      // Length including the flags, encoded like the size above, followed by the flags
+      long length = buffer.getUnsignedByte(index);
+      if (length != 0xFF) {
+        headerSize = 1 + 1;
+      } else {
+        headerSize = 1 + 8 + 1;
+        if (readable < headerSize) {
+          return false;
+        }
+        length = getLong(buffer, index + 1);
+      }
+      if (length == 0) {
+        throw new ZMTPException("Received frame with zero length");
+      }
+      flags = buffer.getUnsignedByte(index + headerSize - 1);
+      size = length - 1;
+    }
+
+    if (size < 0) {
+      throw new ZMTPException("Received too large frame: " + size);
+    }
+
+    buffer.skipBytes(headerSize);
+    frameSize = size;
+    frameFlags = flags;
+    return true;
+  }
+
+  /**
+   * Undo the parsing of the frame header that started at the reader index given.
+   */
+  private void unparseFrameHeader(final ChannelBuffer buffer, final int headerIndex) {
+    frames--;
+    messageSize -= frameSize;
+    frameSize = -1;
+    buffer.readerIndex(headerIndex);
+  }
 
-    return ZMTPFrame.read(buffer, (int) len);
+  private static long getLong(final ChannelBuffer buffer, final int index) {
+    final long value = buffer.getLong(index);
+    return buffer.order() == BIG_ENDIAN ? value : swapLong(value);
   }
 }
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A per thread pool of the objects that decoded messages are made of: messages along with their
+ * frame arrays, incoming messages and frames. Objects are released to the pool of the releasing
+ * thread, so pooling is most effective when messages are released on the I/O thread that decoded
+ * them. Each pool holds a bounded number of objects, beyond which released objects are left to the
+ * garbage collector.
+ *
+ * With leak detection enabled, messages that are garbage collected without having been released
+ * are logged along with where they were decoded.
+ */
+final class ZMTPMessagePool {
+
+  private static final Logger log = LoggerFactory.getLogger(ZMTPMessagePool.class);
+
+  private static final int MAX_MESSAGES = 256;
+  private static final int MAX_FRAMES = 1024;
+
+  private static final ThreadLocal<ZMTPMessagePool> POOLS = new ThreadLocal<ZMTPMessagePool>() {
+    @Override
+    protected ZMTPMessagePool initialValue() {
+      return new ZMTPMessagePool();
+    }
+  };
+
+  private static final ReferenceQueue<ZMTPMessage> LEAKS = new ReferenceQueue<ZMTPMessage>();
+  private static final Set<Leak> TRACKED = Collections.newSetFromMap(
+      new ConcurrentHashMap<Leak, Boolean>());
+
+  private final ArrayDeque<ZMTPMessage> messages = new ArrayDeque<ZMTPMessage>();
+  private final ArrayDeque<ZMTPIncomingMessage> incoming = new ArrayDeque<ZMTPIncomingMessage>();
+  private final ArrayDeque<ZMTPFrame> frames = new ArrayDeque<ZMTPFrame>();
+
+  private ZMTPMessagePool() {
+  }
+
+  /**
+   * Returns the pool of the current thread.
+   */
+  static ZMTPMessagePool get() {
+    return POOLS.get();
+  }
+
+  /**
+   * Take a message without frames from the pool.
+   */
+  ZMTPMessage message() {
+    ZMTPMessage message = messages.poll();
+    if (message == null) {
+      message = new ZMTPMessage();
+    }
+    message.inUse = true;
+    return message;
+  }
+
+  /**
+   * Report a message taken from the pool if it is garbage collected without being released. Called
+   * when the message is handed out, and reports earlier leaks that have been detected.
+   */
+  static void track(final ZMTPMessage message) {
+    pollLeaks();
+    final Leak leak = new Leak(message);
+    TRACKED.add(leak);
+    message.leak = leak;
+  }
+
+  /**
+   * Take an incoming message from the pool.
+   */
+  ZMTPIncomingMessage incoming(final AbstractZMTPSession session, final ZMTPMessage message) {
+    ZMTPIncomingMessage incoming = this.incoming.poll();
+    if (incoming == null) {
+      incoming = new ZMTPIncomingMessage();
+    }
+    incoming.set(session, message);
+    return incoming;
+  }
+
+  /**
+   * Take a frame from the pool, holding a read-only slice of the buffer.
+   */
+  ZMTPFrame frame(final ChannelBuffer buffer, final int length) {
+    ZMTPFrame frame = frames.poll();
+    if (frame == null) {
+      frame = new ZMTPFrame();
+    }
+    frame.setSlice(buffer, length);
+    return frame;
+  }
+
+  void release(final ZMTPIncomingMessage incoming) {
+    if (incoming.getMessage() == null) {
+      throw new IllegalStateException("Message already released");
+    }
+    release(incoming.getMessage());
+    incoming.set(null, null);
+    if (this.incoming.size() < MAX_MESSAGES) {
+      this.incoming.add(incoming);
+    }
+  }
+
+  void release(final ZMTPMessage message) {
+    if (!message.inUse) {
+      throw new IllegalStateException("Message already released");
+    }
+    message.inUse = false;
+    if (message.leak != null) {
+      final Leak leak = (Leak) message.leak;
+      TRACKED.remove(leak);
+      leak.clear();
+      message.leak = null;
+    }
+
+    release(message.envelope, message.envelopeSize);
+    message.envelopeSize = 0;
+    release(message.content, message.contentSize);
+    message.contentSize = 0;
+    if (messages.size() < MAX_MESSAGES) {
+      messages.add(message);
+    }
+  }
+
+  private void release(final ZMTPFrame[] frames, final int size) {
+    for (int i = 0; i < size; i++) {
+      release(frames[i]);
+      frames[i] = null;
+    }
+  }
+
+  /**
+   * Return the frames taken from the pool in a list, and clear it.
+   */
+  @SuppressWarnings("ForLoopReplaceableByForEach")
+  void release(final List<ZMTPFrame> frames) {
+    for (int i = 0; i < frames.size(); i++) {
+      release(frames.get(i));
+    }
+    frames.clear();
+  }
+
+  /**
+   * Return a frame taken from the pool. Other frames are ignored.
+   */
+  void release(final ZMTPFrame frame) {
+    if (frame.pooled) {
+      frame.clear();
+      if (frames.size() < MAX_FRAMES) {
+        frames.add(frame);
+      }
+    }
+  }
+
+  private static void pollLeaks() {
+    Leak leak;
+    while ((leak = (Leak) LEAKS.poll()) != null) {
+      if (TRACKED.remove(leak)) {
+        log.error("A ZMTP message was garbage collected without being released", leak.origin);
+      }
+    }
+  }
+
+  /**
+   * Tracks a pooled message that is in use, remembering where it was taken from the pool.
+   */
+  private static class Leak extends WeakReference<ZMTPMessage> {
+
+    private final Throwable origin = new Throwable("Message decoded here");
+
+    Leak(final ZMTPMessage message) {
+      super(message, LEAKS);
+    }
+  }
+}
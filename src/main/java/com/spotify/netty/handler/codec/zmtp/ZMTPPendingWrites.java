@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the messages written to a channel before the protocol revision used with the remote peer
+ * is known, i.e. before the messages can be framed. Used by the encoders of sessions that negotiate
+ * the revision, so that messages can be written right after connecting.
+ *
+ * The decoder tells the session when the part of our handshake that precedes messages has been
+ * written, which releases the held messages to be written by the encoder after the handshake.
+ */
+class ZMTPPendingWrites {
+
+  /**
+   * Writes a released message.
+   */
+  interface Writer {
+
+    void write(ChannelHandlerContext ctx, MessageEvent e) throws Exception;
+  }
+
+  private final Writer writer;
+  private ChannelHandlerContext ctx;
+  private List<MessageEvent> events;
+
+  ZMTPPendingWrites(final AbstractZMTPSession session, final Writer writer) {
+    this.writer = writer;
+    if (session.negotiatesRevision() && session.setPendingWrites(this)) {
+      events = new ArrayList<MessageEvent>();
+    }
+  }
+
+  /**
+   * Hold a message if the revision is not yet known.
+   *
+   * @return true if the message is held, false if it should be written.
+   */
+  synchronized boolean hold(final ChannelHandlerContext ctx, final MessageEvent e) {
+    if (events == null) {
+      return false;
+    }
+    this.ctx = ctx;
+    events.add(e);
+    if (events.size() == 1) {
+      // Fail the held messages if the channel is closed before they are released
+      e.getChannel().getCloseFuture().addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(final ChannelFuture future) throws Exception {
+          failHeld();
+        }
+      });
+    }
+    return true;
+  }
+
+  /**
+   * Stop holding messages, and write the messages held so far. They are written in order while
+   * synchronized on this object, so that they are not overtaken by messages written concurrently.
+   */
+  @SuppressWarnings("ForLoopReplaceableByForEach")
+  synchronized void release() {
+    final List<MessageEvent> held = events;
+    events = null;
+    if (held == null) {
+      return;
+    }
+    for (int i = 0; i < held.size(); i++) {
+      final MessageEvent e = held.get(i);
+      try {
+        writer.write(ctx, e);
+      } catch (Exception ex) {
+        e.getFuture().setFailure(ex);
+        Channels.fireExceptionCaught(e.getChannel(), ex);
+      }
+    }
+    ctx = null;
+  }
+  @SuppressWarnings("ForLoopReplaceableByForEach")
+  private void failHeld() {
+    final List<MessageEvent> held;
+    synchronized (this) {
+      held = events;
+      if (held == null) {
+        return;
+      }
+      // Later writes are passed on, to be failed by the closed channel
+      events = null;
+    }
+    for (int i = 0; i < held.size(); i++) {
+      held.get(i).getFuture().setFailure(new ClosedChannelException());
+    }
+  }
+}
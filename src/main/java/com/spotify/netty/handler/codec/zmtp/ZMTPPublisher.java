@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Publishes messages to subscribers, like a ZeroMQ PUB socket.
+ *
+ * Add a handler created by {@link #newHandler} after the decoder of each channel. The handler
+ * consumes the subscription messages sent by the subscriber: a single frame of a 1 byte to
+ * subscribe or a 0 byte to unsubscribe, followed by a prefix. Messages passed to {@link #publish}
+ * are written to the subscribers with a prefix of their first content frame.
+ *
+ * A published message is encoded once per framing in use, and each subscriber is written a
+ * duplicate of the same read-only buffer, so the cost of encoding does not grow with the number of
+ * subscribers.
+ */
+public class ZMTPPublisher {
+
+  /**
+   * The root of the subscription trie, holding the subscribers to all messages.
+   */
+  private final Node root = new Node();
+
+  /**
+   * Incremented for each published message, to write a message once to a subscriber with several
+   * matching prefixes.
+   */
+  private long generation;
+
+  /**
+   * Create a handler that subscribes a session to this publisher.
+   *
+   * @param session The session of the channel that the handler is added to.
+   * @return The handler.
+   */
+  public ChannelUpstreamHandler newHandler(final AbstractZMTPSession session) {
+    return new Handler(new Subscriber(session));
+  }
+
+  /**
+   * Write a message to all subscribers to a prefix of its first content frame.
+   *
+   * @param message The message to publish.
+   * @return The number of subscribers the message was written to.
+   */
+  @SuppressWarnings("ForLoopReplaceableByForEach")
+  public int publish(final ZMTPMessage message) {
+    final List<Subscriber> matches = match(message);
+
+    // One encoding for each combination of framing and enveloping
+    final ChannelBuffer[] encoded = new ChannelBuffer[4];
+    for (int i = 0; i < matches.size(); i++) {
+      final AbstractZMTPSession session = matches.get(i).session;
+      final ZMTPRevision revision = session.getRevision();
+      final boolean enveloped = session.isEnveloped();
+      final int index = (revision == ZMTPRevision.ZMTP_10 ? 0 : 2) + (enveloped ? 1 : 0);
+      if (encoded[index] == null) {
+        final ChannelBuffer buffer =
+            ChannelBuffers.buffer(ZMTPUtils.messageSize(message, enveloped, revision));
+        ZMTPUtils.writeMessage(message, buffer, enveloped, revision);
+        encoded[index] = ChannelBuffers.unmodifiableBuffer(buffer);
+      }
+      session.getChannel().write(encoded[index].duplicate());
+    }
+
+    return matches.size();
+  }
+
+  /**
+   * Find the subscribers to a message by walking the trie along its first content frame.
+   */
+  private synchronized List<Subscriber> match(final ZMTPMessage message) {
+    final long generation = ++this.generation;
+    final List<Subscriber> matches = new ArrayList<Subscriber>();
+
+    final List<ZMTPFrame> content = message.getContent();
+    final ChannelBuffer topic = content.isEmpty() ? null : content.get(0).getDataBuffer();
+    final int length = topic == null ? 0 : topic.readableBytes();
+
+    Node node = root;
+    for (int i = 0; ; i++) {
+      node.collect(matches, generation);
+      if (i == length) {
+        break;
+      }
+      node = node.child(topic.getByte(topic.readerIndex() + i));
+      if (node == null) {
+        break;
+      }
+    }
+
+    return matches;
+  }
+
+  private synchronized void subscribe(final Subscriber subscriber, final ChannelBuffer prefix) {
+    Node node = root;
+    for (int i = prefix.readerIndex(); i < prefix.writerIndex(); i++) {
+      node = node.addChild(prefix.getByte(i));
+    }
+    node.subscribers.add(subscriber);
+  }
+
+  private synchronized void unsubscribe(final Subscriber subscriber, final ChannelBuffer prefix) {
+    unsubscribe(root, subscriber, prefix, prefix.readerIndex());
+  }
+
+  /**
+   * Remove a subscription from the trie below a node, pruning nodes that are left empty.
+   *
+   * @return true if the node is left empty.
+   */
+  private static boolean unsubscribe(final Node node, final Subscriber subscriber,
+                                     final ChannelBuffer prefix, final int index) {
+    if (index == prefix.writerIndex()) {
+      node.subscribers.remove(subscriber);
+    } else {
+      final byte b = prefix.getByte(index);
+      final Node child = node.child(b);
+      if (child != null && unsubscribe(child, subscriber, prefix, index + 1)) {
+        node.removeChild(b);
+      }
+    }
+    return node.subscribers.isEmpty() && node.childCount == 0;
+  }
+
+  /**
+   * A node of the subscription trie, with a child for each byte that follows its prefix. The
+   * children are kept sparse, in arrays sorted by byte that grow as needed, since most nodes have
+   * few of them.
+   */
+  private static class Node {
+
+    private static final byte[] NO_KEYS = new byte[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private byte[] keys = NO_KEYS;
+    private Node[] children = NO_CHILDREN;
+    private int childCount;
+
+    /**
+     * The subscribers to the prefix of this node, once per subscription.
+     */
+    private final List<Subscriber> subscribers = new ArrayList<Subscriber>(1);
+
+    @SuppressWarnings("ForLoopReplaceableByForEach")
+    void collect(final List<Subscriber> matches, final long generation) {
+      for (int i = 0; i < subscribers.size(); i++) {
+        final Subscriber subscriber = subscribers.get(i);
+        if (subscriber.generation != generation) {
+          subscriber.generation = generation;
+          matches.add(subscriber);
+        }
+      }
+    }
+
+    Node child(final byte b) {
+      final int i = indexOf(b);
+      return i >= 0 ? children[i] : null;
+    }
+
+    Node addChild(final byte b) {
+      int i = indexOf(b);
+      if (i >= 0) {
+        return children[i];
+      }
+      i = -(i + 1);
+      if (childCount == keys.length) {
+        final int capacity = Math.min(256, Math.max(2, 2 * childCount));
+        keys = Arrays.copyOf(keys, capacity);
+        children = Arrays.copyOf(children, capacity);
+      }
+      System.arraycopy(keys, i, keys, i + 1, childCount - i);
+      System.arraycopy(children, i, children, i + 1, childCount - i);
+      final Node child = new Node();
+      keys[i] = b;
+      children[i] = child;
+      childCount++;
+      return child;
+    }
+
+    void removeChild(final byte b) {
+      final int i = indexOf(b);
+      if (i < 0) {
+        return;
+      }
+      childCount--;
+      System.arraycopy(keys, i + 1, keys, i, childCount - i);
+      System.arraycopy(children, i + 1, children, i, childCount - i);
+      children[childCount] = null;
+      if (childCount == 0) {
+        keys = NO_KEYS;
+        children = NO_CHILDREN;
+      }
+    }
+
+    /**
+     * Binary search for the child of a byte.
+     *
+     * @return The index of the child, or (-(insertion point) - 1) if there is none.
+     */
+    private int indexOf(final byte b) {
+      int low = 0;
+      int high = childCount - 1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final byte key = keys[mid];
+        if (key < b) {
+          low = mid + 1;
+        } else if (key > b) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -(low + 1);
+    }
+  }
+
+  private static class Subscriber {
+
+    private final AbstractZMTPSession session;
+
+    /**
+     * The prefixes subscribed to, to be unsubscribed when the channel is closed.
+     */
+    private final List<ChannelBuffer> prefixes = new ArrayList<ChannelBuffer>();
+
+    /**
+     * The generation of the last message matched, guarded by the publisher.
+     */
+    private long generation;
+
+    Subscriber(final AbstractZMTPSession session) {
+      this.session = session;
+    }
+  }
+
+  private class Handler extends SimpleChannelUpstreamHandler {
+
+    private final Subscriber subscriber;
+
+    Handler(final Subscriber subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+        throws Exception {
+      final Object message = e.getMessage();
+      if (message instanceof ZMTPIncomingMessage) {
+        if (!handleSubscription((ZMTPIncomingMessage) message)) {
+          super.messageReceived(ctx, e);
+        }
+      } else if (message instanceof List) {
+        final List<ZMTPIncomingMessage> batch = (List<ZMTPIncomingMessage>) message;
+        final List<ZMTPIncomingMessage> rest = new ArrayList<ZMTPIncomingMessage>();
+        for (int i = 0; i < batch.size(); i++) {
+          if (!handleSubscription(batch.get(i))) {
+            rest.add(batch.get(i));
+          }
+        }
+        if (!rest.isEmpty()) {
+          ctx.sendUpstream(new UpstreamMessageEvent(e.getChannel(), rest, e.getRemoteAddress()));
+        }
+      } else {
+        super.messageReceived(ctx, e);
+      }
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+        throws Exception {
+      synchronized (subscriber) {
+        for (final ChannelBuffer prefix : subscriber.prefixes) {
+          unsubscribe(subscriber, prefix);
+        }
+        subscriber.prefixes.clear();
+      }
+      super.channelClosed(ctx, e);
+    }
+
+    /**
+     * Subscribe or unsubscribe if the message is a subscription message, releasing the message as
+     * it is consumed.
+     *
+     * @return true if the message was a subscription message.
+     */
+    private boolean handleSubscription(final ZMTPIncomingMessage incoming) {
+      final List<ZMTPFrame> content = incoming.getMessage().getContent();
+      if (content.size() != 1) {
+        return false;
+      }
+      final ChannelBuffer data = content.get(0).getDataBuffer();
+      if (data == null) {
+        return false;
+      }
+      final byte command = data.getByte(data.readerIndex());
+      if (command != 0 && command != 1) {
+        return false;
+      }
+
+      // Keep a copy of the prefix, as it is a slice of a receive buffer
+      final ChannelBuffer prefix =
+          data.copy(data.readerIndex() + 1, data.readableBytes() - 1);
+      synchronized (subscriber) {
+        if (command == 1) {
+          subscriber.prefixes.add(prefix);
+          subscribe(subscriber, prefix);
+        } else if (subscriber.prefixes.remove(prefix)) {
+          unsubscribe(subscriber, prefix);
+        }
+      }
+      incoming.release();
+      return true;
+    }
+  }
+}
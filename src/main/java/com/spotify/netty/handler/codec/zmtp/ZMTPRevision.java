@@ -7,7 +7,7 @@ package com.spotify.netty.handler.codec.zmtp;
  * 
  */
 public enum ZMTPRevision {
-	ZMTP_10((byte) 0x00), ZMTP_20((byte) 0x01), ZMTP_30((byte) 0x02);
+	ZMTP_10((byte) 0x00), ZMTP_20((byte) 0x01), ZMTP_30((byte) 0x03);
 
 	private final byte revision;
 
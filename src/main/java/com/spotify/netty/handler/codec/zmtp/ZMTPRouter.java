@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Routes messages to peers by identity, like a ZeroMQ ROUTER socket.
+ *
+ * Add a handler created by {@link #newHandler} after the decoder of each channel. Once the
+ * handshake is complete, the session is registered by the identity of the remote peer, and the
+ * identity is prepended to the envelope of each message received from it. Messages passed to
+ * {@link #send} are routed by the first envelope frame, which is removed from the message before
+ * it is written.
+ *
+ * A peer connecting with the identity of a connected peer is disconnected.
+ */
+public class ZMTPRouter {
+
+  /**
+   * Sessions by identity frame, so that messages are routed by their first envelope frame without
+   * copying it.
+   */
+  private final ConcurrentMap<ZMTPFrame, AbstractZMTPSession> sessions =
+      new ConcurrentHashMap<ZMTPFrame, AbstractZMTPSession>();
+
+  /**
+   * Create a handler that registers a session with this router.
+   *
+   * @param session The session of the channel that the handler is added to.
+   * @return The handler.
+   */
+  public ChannelUpstreamHandler newHandler(final AbstractZMTPSession session) {
+    return new Handler(session);
+  }
+
+  /**
+   * Write a message to the peer identified by the first frame of its envelope, without that frame.
+   * The frame is removed from the message in place if the message is written.
+   *
+   * @param message The message to send.
+   * @return The future of the write, or null if there is no connected peer with the identity.
+   */
+  public ChannelFuture send(final ZMTPMessage message) {
+    if (message.envelopeSize == 0) {
+      throw new IllegalArgumentException("Cannot route message with empty envelope");
+    }
+    final AbstractZMTPSession session = sessions.get(message.envelope[0]);
+    if (session == null) {
+      return null;
+    }
+    message.removeEnvelopeFrame();
+    return session.getChannel().write(message);
+  }
+
+  /**
+   * Returns the session of a connected peer.
+   *
+   * @param identity The identity of the peer.
+   * @return The session, or null if there is no connected peer with the identity.
+   */
+  public AbstractZMTPSession getSession(final ZMTPIdentity identity) {
+    return sessions.get(identity.toFrame());
+  }
+
+  /**
+   * Returns the number of connected peers.
+   */
+  public int size() {
+    return sessions.size();
+  }
+
+  private class Handler extends SimpleChannelUpstreamHandler {
+
+    private final AbstractZMTPSession session;
+
+    private ZMTPFrame identityFrame;
+
+    Handler(final AbstractZMTPSession session) {
+      this.session = session;
+    }
+
+    @Override
+    public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+        throws Exception {
+      // The remote identity is not yet known if the handshake is pipelined, so register once the
+      // handshake is complete, which is before any message is received
+      session.getHandshakeFuture().addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+          if (future.isSuccess()) {
+            register();
+          }
+        }
+      });
+      super.channelConnected(ctx, e);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+        throws Exception {
+      final Object message = e.getMessage();
+      if (message instanceof ZMTPIncomingMessage) {
+        prependIdentity((ZMTPIncomingMessage) message);
+      } else if (message instanceof List) {
+        final List<ZMTPIncomingMessage> batch = (List<ZMTPIncomingMessage>) message;
+        for (int i = 0; i < batch.size(); i++) {
+          prependIdentity(batch.get(i));
+        }
+      }
+      ctx.sendUpstream(e);
+    }
+
+    @Override
+    public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e)
+        throws Exception {
+      if (identityFrame != null) {
+        sessions.remove(identityFrame, session);
+      }
+      super.channelClosed(ctx, e);
+    }
+
+    private void register() {
+      identityFrame = ZMTPIdentity.from(session.getRemoteIdentity()).toFrame();
+      final AbstractZMTPSession existing = sessions.putIfAbsent(identityFrame, session);
+      if (existing != null && existing != session) {
+        session.getChannel().close();
+      }
+    }
+
+    /**
+     * Prepend the identity to the envelope of a received message in place, so that a pooled
+     * message is still released as a whole.
+     */
+    private void prependIdentity(final ZMTPIncomingMessage incoming) {
+      incoming.getMessage().prependEnvelope(identityFrame);
+    }
+  }
+}
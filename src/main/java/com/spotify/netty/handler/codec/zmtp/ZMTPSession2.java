@@ -10,15 +10,35 @@ import org.jetbrains.annotations.Nullable;
 public class ZMTPSession2 extends AbstractZMTPSession {
 
 	private final ZMTPSocketType type;
+	private volatile ZMTPRevision revision;
 
 	public ZMTPSession2(final ZMTPSocketType type) {
 		this(type, null);
 	}
 
 	public ZMTPSession2(final ZMTPSocketType type, @Nullable final byte[] localIdent) {
+		this(type, localIdent, ZMTPRevision.ZMTP_20);
+	}
+
+	/**
+	 * Create a session speaking a specific protocol revision.
+	 * 
+	 * @param type
+	 *            The socket type.
+	 * @param localIdent
+	 *            The local identity, or null to create one.
+	 * @param revision
+	 *            The highest revision to speak, {@link ZMTPRevision#ZMTP_20} or
+	 *            {@link ZMTPRevision#ZMTP_30}. A lower revision is used if the
+	 *            remote peer does not support it.
+	 */
+	public ZMTPSession2(final ZMTPSocketType type, @Nullable final byte[] localIdent, final ZMTPRevision revision) {
 		super(localIdent);
+		if (revision != ZMTPRevision.ZMTP_20 && revision != ZMTPRevision.ZMTP_30) {
+			throw new IllegalArgumentException("revision: " + revision);
+		}
 		this.type = type;
-
+		this.revision = revision;
 	}
 
 	/**
@@ -37,9 +57,26 @@ public class ZMTPSession2 extends AbstractZMTPSession {
 		return (type == ZMTPSocketType.REQ);
 	}
 
+	/**
+	 * @return The revision requested for the session until the handshake with
+	 *         the remote peer is done, and the revision used with the peer
+	 *         after that.
+	 */
 	@Override
 	public ZMTPRevision getRevision() {
-		return ZMTPRevision.ZMTP_20;
+		return revision;
+	}
+
+	@Override
+	public boolean negotiatesRevision() {
+		return true;
+	}
+
+	/**
+	 * Set the revision agreed on with the remote peer.
+	 */
+	void setRevision(final ZMTPRevision revision) {
+		this.revision = revision;
 	}
 
 }
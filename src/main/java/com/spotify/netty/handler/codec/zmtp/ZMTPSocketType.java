@@ -11,7 +11,49 @@ package com.spotify.netty.handler.codec.zmtp;
  */
 public enum ZMTPSocketType {
 	PAIR((byte) 0x00), PUB((byte) 0x01), SUB((byte) 0x02), REQ((byte) 0x03), REP((byte) 0x04), DEALER((byte) 0x05), ROUTER(
-			(byte) 0x06), PULL((byte) 0x07), PUSH((byte) 0x08), UNKNOWN((byte) (0xFF));
+			(byte) 0x06), PULL((byte) 0x07), PUSH((byte) 0x08), XPUB((byte) 0x09), XSUB((byte) 0x0A), STREAM((byte) 0x0B), UNKNOWN(
+			(byte) (0xFF));
+
+	/**
+	 * Socket types by encoded value.
+	 */
+	private static final ZMTPSocketType[] BY_ENCODING = new ZMTPSocketType[256];
+
+	/**
+	 * Whether a socket type can connect to another, indexed by the ordinals of
+	 * the local and the remote socket type.
+	 */
+	private static final boolean[][] COMPATIBLE = new boolean[values().length][values().length];
+
+	static {
+		for (int i = 0; i < BY_ENCODING.length; i++) {
+			BY_ENCODING[i] = UNKNOWN;
+		}
+		for (final ZMTPSocketType type : values()) {
+			if (type != UNKNOWN) {
+				BY_ENCODING[type.encoding & 0xFF] = type;
+			}
+		}
+
+		compatible(PAIR, PAIR);
+		compatible(PUB, SUB, XSUB);
+		compatible(XPUB, SUB, XSUB);
+		compatible(SUB, PUB, XPUB);
+		compatible(XSUB, PUB, XPUB);
+		compatible(REQ, REP, ROUTER);
+		compatible(REP, REQ, DEALER);
+		compatible(DEALER, REP, DEALER, ROUTER);
+		compatible(ROUTER, REQ, DEALER, ROUTER);
+		compatible(PULL, PUSH);
+		compatible(PUSH, PULL);
+		// STREAM sockets speak raw TCP rather than ZMTP, and UNKNOWN is unknown
+	}
+
+	private static void compatible(final ZMTPSocketType local, final ZMTPSocketType... remotes) {
+		for (final ZMTPSocketType remote : remotes) {
+			COMPATIBLE[local.ordinal()][remote.ordinal()] = true;
+		}
+	}
 
 	private final byte encoding;
 
@@ -24,27 +66,34 @@ public enum ZMTPSocketType {
 	}
 
 	public static ZMTPSocketType fromByte(final byte value) {
-		switch (value) {
-		case 0x00:
-			return PAIR;
-		case 0x01:
-			return PUB;
-		case 0x02:
-			return SUB;
-		case 0x03:
-			return REQ;
-		case 0x04:
-			return REP;
-		case 0x05:
-			return DEALER;
-		case 0x06:
-			return ROUTER;
-		case 0x07:
-			return PULL;
-		case 0x08:
-			return PUSH;
-		default:
-			return UNKNOWN;
+		return BY_ENCODING[value & 0xFF];
+	}
+
+	/**
+	 * Check whether a socket of this type can connect to a remote socket of
+	 * another type, as defined by the ZeroMQ messaging patterns. E.g. a REQ
+	 * socket can connect to a REP or ROUTER socket, but not to a REQ socket.
+	 * 
+	 * @param remote
+	 *            The type of the remote socket.
+	 * @return true if the socket types are compatible, false otherwise.
+	 */
+	public boolean isCompatibleWith(final ZMTPSocketType remote) {
+		return COMPATIBLE[ordinal()][remote.ordinal()];
+	}
+
+	/**
+	 * Look up a socket type by name, as used in ZMTP/3.0 metadata.
+	 * 
+	 * @return The socket type, or {@link #UNKNOWN} if there is no socket type
+	 *         with the name.
+	 */
+	public static ZMTPSocketType fromName(final String name) {
+		for (final ZMTPSocketType type : values()) {
+			if (type != UNKNOWN && type.name().equals(name)) {
+				return type;
+			}
 		}
+		return UNKNOWN;
 	}
 }
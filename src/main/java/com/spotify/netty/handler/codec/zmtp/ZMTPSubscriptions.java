@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.Arrays;
+
+/**
+ * A set of subscription prefixes, used by a {@link ZMTPMessageParser} to skip received messages
+ * whose first content frame does not start with any of them.
+ *
+ * Subscriptions may be changed while messages are being parsed. Changes are copy-on-write, as
+ * they are expected to be much less frequent than matching.
+ */
+public class ZMTPSubscriptions {
+
+  private volatile Snapshot snapshot = new Snapshot(new byte[0][]);
+
+  /**
+   * Subscribe to messages starting with a prefix. Subscribing to an empty prefix matches all
+   * messages.
+   */
+  public synchronized void subscribe(final byte[] prefix) {
+    final byte[][] current = snapshot.prefixes;
+    final byte[][] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = prefix.clone();
+    snapshot = new Snapshot(updated);
+  }
+
+  /**
+   * Remove one subscription to a prefix.
+   *
+   * @return true if there was a subscription to the prefix.
+   */
+  public synchronized boolean unsubscribe(final byte[] prefix) {
+    final byte[][] current = snapshot.prefixes;
+    for (int i = 0; i < current.length; i++) {
+      if (Arrays.equals(current[i], prefix)) {
+        final byte[][] updated = new byte[current.length - 1][];
+        System.arraycopy(current, 0, updated, 0, i);
+        System.arraycopy(current, i + 1, updated, i, updated.length - i);
+        snapshot = new Snapshot(updated);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the current prefixes, to be read once for each frame that is matched against them.
+   */
+  Snapshot snapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Check whether data in a buffer starts with any of the prefixes, without copying it.
+   *
+   * @param buffer The buffer.
+   * @param index  The index of the data in the buffer.
+   * @param length The length of the data.
+   * @return true if the data matches a subscription.
+   */
+  public boolean matches(final ChannelBuffer buffer, final int index, final int length) {
+    return snapshot.matches(buffer, index, length);
+  }
+
+  /**
+   * An immutable set of prefixes along with the length of the longest one, published as one.
+   */
+  static final class Snapshot {
+
+    private final byte[][] prefixes;
+    private final int maxPrefixLength;
+
+    private Snapshot(final byte[][] prefixes) {
+      int max = 0;
+      for (final byte[] prefix : prefixes) {
+        max = Math.max(max, prefix.length);
+      }
+      this.prefixes = prefixes;
+      this.maxPrefixLength = max;
+    }
+
+    /**
+     * Returns the length of the longest prefix, i.e. how much of a frame is needed to match it.
+     */
+    int maxPrefixLength() {
+      return maxPrefixLength;
+    }
+
+    boolean matches(final ChannelBuffer buffer, final int index, final int length) {
+      for (int i = 0; i < prefixes.length; i++) {
+        if (startsWith(buffer, index, length, prefixes[i])) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static boolean startsWith(final ChannelBuffer buffer, final int index, final int length,
+                                    final byte[] prefix) {
+    if (prefix.length > length) {
+      return false;
+    }
+    for (int i = 0; i < prefix.length; i++) {
+      if (buffer.getByte(index + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
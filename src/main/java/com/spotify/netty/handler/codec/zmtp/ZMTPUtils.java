@@ -18,7 +18,6 @@ package com.spotify.netty.handler.codec.zmtp;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 
-import java.util.List;
 import java.util.UUID;
 
 import static java.nio.ByteOrder.BIG_ENDIAN;
@@ -31,6 +30,8 @@ public class ZMTPUtils {
 
   public static final byte MORE_FLAG = 0x1;
   public static final byte FINAL_FLAG = 0x0;
+  public static final byte LONG_FLAG = 0x2;
+  public static final byte COMMAND_FLAG = 0x4;
   public static final ZMTPFrame DELIMITER = ZMTPFrame.create();
   
   public static final byte[] ZMTP_20_SIGNATURE = { 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x7f };
@@ -38,19 +39,22 @@ public class ZMTPUtils {
   /**
    * Helper to decode a ZeroMQ length field
    *
-   * @return length or -1 if not enough bytes available
+   * @return length or -1 if not enough bytes available, in which case nothing is consumed
    */
   static public long decodeLength(final ChannelBuffer in) {
     if (in.readableBytes() < 1) {
       return -1;
     }
 
-    long size = in.readByte() & 0xFF;
-    if (size == 0xFF) {
-      if (in.readableBytes() < 8) {
+    long size = in.getUnsignedByte(in.readerIndex());
+    if (size != 0xFF) {
+      in.skipBytes(1);
+    } else {
+      if (in.readableBytes() < 1 + 8) {
         return -1;
       }
 
+      in.skipBytes(1);
       if (in.order() == BIG_ENDIAN) {
         size = in.readLong();
       } else {
@@ -98,7 +102,7 @@ public class ZMTPUtils {
   }
 
   /**
-   * Writes a ZMTP frame to a buffer.
+   * Writes a ZMTP/1.0 frame to a buffer.
    *
    * @param frame  The frame to write.
    * @param buffer The target buffer.
@@ -106,86 +110,196 @@ public class ZMTPUtils {
    */
   public static void writeFrame(final ZMTPFrame frame, final ChannelBuffer buffer,
                                 final boolean more) {
-    encodeLength(frame.size() + 1, buffer);
-    buffer.writeByte(more ? MORE_FLAG : FINAL_FLAG);
-    if (frame.hasData()) {
-      buffer.writeBytes(frame.getData());
+    writeFrame(frame, buffer, more, ZMTPRevision.ZMTP_10);
+  }
+
+  /**
+   * Writes a ZMTP frame to a buffer.
+   *
+   * @param frame    The frame to write.
+   * @param buffer   The target buffer.
+   * @param more     True to write a more flag, false to write a final flag.
+   * @param revision The protocol revision whose framing to use.
+   */
+  public static void writeFrame(final ZMTPFrame frame, final ChannelBuffer buffer,
+                                final boolean more, final ZMTPRevision revision) {
+    writeFrameHeader(frame, buffer, more, revision);
+    frame.writeData(buffer);
+  }
+
+  /**
+   * Writes a ZMTP/3.0 command frame to a buffer.
+   *
+   * @param command The command frame to write, containing the command name and data.
+   * @param buffer  The target buffer.
+   */
+  public static void writeCommand(final ZMTPFrame command, final ChannelBuffer buffer) {
+    writeFlagsAndSize(command.size(), COMMAND_FLAG, buffer);
+    command.writeData(buffer);
+  }
+
+  /**
+   * Writes the length and flag header of a ZMTP frame to a buffer, but not the frame data.
+   *
+   * @param frame    The frame to write the header of.
+   * @param buffer   The target buffer.
+   * @param more     True to write a more flag, false to write a final flag.
+   * @param revision The protocol revision whose framing to use.
+   */
+  public static void writeFrameHeader(final ZMTPFrame frame, final ChannelBuffer buffer,
+                                      final boolean more, final ZMTPRevision revision) {
+    final int flags = more ? MORE_FLAG : FINAL_FLAG;
+    if (revision != ZMTPRevision.ZMTP_10) {
+      writeFlagsAndSize(frame.size(), flags, buffer);
+    } else {
+      encodeLength(frame.size() + 1, buffer);
+      buffer.writeByte(flags);
     }
   }
 
   /**
-   * Write a ZMTP message to a buffer.
+   * Writes a ZMTP/2.0 or ZMTP/3.0 frame header: the flags, followed by the size as a single byte
+   * or, with the long flag set, as eight bytes.
+   */
+  private static void writeFlagsAndSize(final int size, final int flags,
+                                        final ChannelBuffer buffer) {
+    if (size > 0xFF) {
+      buffer.writeByte(flags | LONG_FLAG);
+      if (buffer.order() == BIG_ENDIAN) {
+        buffer.writeLong(size);
+      } else {
+        buffer.writeLong(swapLong(size));
+      }
+    } else {
+      buffer.writeByte(flags);
+      buffer.writeByte(size);
+    }
+  }
+
+  /**
+   * Write a ZMTP message to a buffer using ZMTP/1.0 framing.
    *
    * @param message   The message to write.
    * @param buffer    The target buffer.
    * @param enveloped Whether the envelope and delimiter should be written.
    */
-  @SuppressWarnings("ForLoopReplaceableByForEach")
   public static void writeMessage(final ZMTPMessage message, final ChannelBuffer buffer,
                                   final boolean enveloped) {
+    writeMessage(message, buffer, enveloped, ZMTPRevision.ZMTP_10);
+  }
+
+  /**
+   * Write a ZMTP message to a buffer.
+   *
+   * @param message   The message to write.
+   * @param buffer    The target buffer.
+   * @param enveloped Whether the envelope and delimiter should be written.
+   * @param revision  The protocol revision whose framing to use.
+   */
+  public static void writeMessage(final ZMTPMessage message, final ChannelBuffer buffer,
+                                  final boolean enveloped, final ZMTPRevision revision) {
 
     // Write envelope
     if (enveloped) {
       // Sanity check
-      if (message.getContent().isEmpty()) {
+      if (message.contentSize == 0) {
         throw new ZMTPException("Cannot write enveloped message with no content");
       }
 
-      final List<ZMTPFrame> envelope = message.getEnvelope();
-      for (int i = 0; i < envelope.size(); i++) {
-        writeFrame(envelope.get(i), buffer, true);
+      final ZMTPFrame[] envelope = message.envelope;
+      final int n = message.envelopeSize;
+      for (int i = 0; i < n; i++) {
+        writeFrame(envelope[i], buffer, true, revision);
       }
 
       // Write the delimiter
-      writeFrame(DELIMITER, buffer, true);
+      writeFrame(DELIMITER, buffer, true, revision);
     }
 
-    final List<ZMTPFrame> content = message.getContent();
-    final int n = content.size();
+    final ZMTPFrame[] content = message.content;
+    final int n = message.contentSize;
     final int lastFrame = n - 1;
     for (int i = 0; i < n; i++) {
-      writeFrame(content.get(i), buffer, i < lastFrame);
+      writeFrame(content[i], buffer, i < lastFrame, revision);
     }
   }
 
   /**
-   * Calculate bytes needed to serialize a ZMTP frame.
+   * Calculate bytes needed to serialize a ZMTP/1.0 frame.
    *
    * @param frame The frame.
    * @return Bytes needed.
    */
   public static int frameSize(final ZMTPFrame frame) {
+    return frameSize(frame, ZMTPRevision.ZMTP_10);
+  }
+
+  /**
+   * Calculate bytes needed to serialize a ZMTP frame.
+   *
+   * @param frame    The frame.
+   * @param revision The protocol revision whose framing to use.
+   * @return Bytes needed.
+   */
+  public static int frameSize(final ZMTPFrame frame, final ZMTPRevision revision) {
+    return frameHeaderSize(frame, revision) + frame.size();
+  }
+
+  /**
+   * Calculate bytes needed to serialize the length and flag header of a ZMTP frame.
+   *
+   * @param frame    The frame.
+   * @param revision The protocol revision whose framing to use.
+   * @return Bytes needed.
+   */
+  public static int frameHeaderSize(final ZMTPFrame frame, final ZMTPRevision revision) {
+    if (revision != ZMTPRevision.ZMTP_10) {
+      return frame.size() > 0xFF ? 1 + 8 : 1 + 1;
+    }
     if (frame.size() + 1 < 255) {
-      return 1 + 1 + frame.size();
+      return 1 + 1;
     } else {
-      return 1 + 8 + 1 + frame.size();
+      return 1 + 8 + 1;
     }
   }
 
   /**
-   * Calculate bytes needed to serialize a ZMTP message.
+   * Calculate bytes needed to serialize a ZMTP message using ZMTP/1.0 framing.
    *
    * @param message   The message.
    * @param enveloped Whether an envelope will be written.
    * @return The number of bytes needed.
    */
-  @SuppressWarnings("ForLoopReplaceableByForEach")
   public static int messageSize(final ZMTPMessage message, final boolean enveloped) {
+    return messageSize(message, enveloped, ZMTPRevision.ZMTP_10);
+  }
+
+  /**
+   * Calculate bytes needed to serialize a ZMTP message.
+   *
+   * @param message   The message.
+   * @param enveloped Whether an envelope will be written.
+   * @param revision  The protocol revision whose framing to use.
+   * @return The number of bytes needed.
+   */
+  public static int messageSize(final ZMTPMessage message, final boolean enveloped,
+                                final ZMTPRevision revision) {
     int size = 0;
 
     if (enveloped) {
 
-      final List<ZMTPFrame> envelope = message.getEnvelope();
-      for (int i = 0; i < envelope.size(); i++) {
-        size += frameSize(envelope.get(i));
+      final ZMTPFrame[] envelope = message.envelope;
+      final int n = message.envelopeSize;
+      for (int i = 0; i < n; i++) {
+        size += frameSize(envelope[i], revision);
       }
-      size += frameSize(DELIMITER);
+      size += frameSize(DELIMITER, revision);
     }
 
-    final List<ZMTPFrame> content = message.getContent();
-    final int n = content.size();
+    final ZMTPFrame[] content = message.content;
+    final int n = message.contentSize;
     for (int i = 0; i < n; i++) {
-      size += frameSize(content.get(i));
+      size += frameSize(content[i], revision);
     }
 
     return size;
@@ -21,17 +21,32 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.handler.queue.BufferedWriteHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A channel handler that attempts to batch together and consolidate smaller
  * writes to avoid many small individual writes on the channel and the syscall
  * overhead this would incur.
+ * 
+ * Use {@link #builder()} to configure the flush interval, maximum delay and
+ * buffer size, or to enable adaptive flushing.
+ * 
+ * Delayed flushes are scheduled on a {@link Timer}. Unless one is set with
+ * {@link Builder#timer(Timer)}, a single default timer is shared by all
+ * batchers. By default the shared timer only hands delayed flushes over to the
+ * I/O thread of each channel, so that the flushing itself is spread over the
+ * I/O workers. To also spread the scheduling, create a timer per I/O worker
+ * with {@link #newFlusher(String)} and give it to the batchers of the channels
+ * that the worker serves.
  */
 public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
 
@@ -41,39 +56,56 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
 	private static final TimeUnit DEFAULT_MAX_DELAY_TIMEUNIT = TimeUnit.MICROSECONDS;
 	private static final boolean DEFAULT_CONSOLIDATE_ON_FLUSH = true;
 	private static final int DEFAULT_MAX_BUFFER_SIZE = 4096;
+	private static final boolean DEFAULT_ADAPTIVE = false;
+	private static final int DEFAULT_MIN_BUFFER_SIZE = 256;
+
+	/**
+	 * Weight of the latest write in the moving averages of adaptive flushing.
+	 */
+	private static final double ADAPTIVE_WEIGHT = 0.1;
 
 	private final AtomicInteger bufferSize = new AtomicInteger();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
 	private final long intervalNanos;
-	private final long maxDelayNanos = DEFAULT_MAX_DELAY_TIMEUNIT.toNanos(DEFAULT_MAX_DELAY);
-	private final int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+	private final boolean flushInIoThread;
+	private final long maxDelayNanos;
+	private final int maxBufferSize;
+	private final int minBufferSize;
+	private final boolean adaptive;
+	private final Ticker ticker;
 
-	private volatile long lastFlush;
 	private volatile long lastWrite;
+	private volatile int flushThreshold;
+	private volatile double averageWriteBytes;
+	private volatile double averageWriteNanos;
+	private volatile Timeout flushTimeout;
+	private volatile ChannelHandlerContext ctx;
+
+	private final Timer flusher;
 
-	private static final ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
-		@NotNull
+	/**
+	 * Scheduled when a write is buffered to enforce the maximum latency that a
+	 * message is buffered.
+	 */
+	private final TimerTask flushTask = new TimerTask() {
 		@Override
-		public Thread newThread(final Runnable r) {
-			final Thread thread = new Thread(r);
-			thread.setDaemon(true);
-			thread.setName("netty-write-buffer-flusher");
-			return thread;
+		public void run(final Timeout timeout) {
+			final ChannelHandlerContext ctx = AutoFlushingWriteBatcher.this.ctx;
+			if (flushInIoThread && ctx != null) {
+				ctx.getPipeline().execute(delayedFlushTask);
+			} else {
+				delayedFlush();
+			}
 		}
-	});
+	};
 
 	/**
-	 * Scheduled to be called regularly to enforce the max delay of outgoing
-	 * messages in the buffer.
+	 * Hands a scheduled flush over to the I/O thread of the channel.
 	 */
-	private final Runnable flushTask = new Runnable() {
+	private final Runnable delayedFlushTask = new Runnable() {
 		@Override
 		public void run() {
-			// Flush if the buffer has not been flushed during the last max
-			// delay time interval
-			final long nanosSinceLastFlush = System.nanoTime() - lastFlush;
-			if (nanosSinceLastFlush > maxDelayNanos) {
-				flush();
-			}
+			delayedFlush();
 		}
 	};
 
@@ -129,19 +161,89 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
 	 *            otherwise.
 	 */
 	public AutoFlushingWriteBatcher(final long interval, final TimeUnit intervalUnit, final boolean consolidateOnFlush) {
-		super(consolidateOnFlush);
-		this.intervalNanos = intervalUnit.toNanos(interval);
+		this(builder().interval(interval, intervalUnit).consolidateOnFlush(consolidateOnFlush));
+	}
+
+	/**
+	 * Create a write batcher with custom flushing interval, consolidation and
+	 * flushing thread. If flushing in the I/O thread, delayed flushes are
+	 * handed over to the I/O thread of the channel instead of being performed
+	 * by the timer thread, avoiding contention with the I/O thread
+	 * on the write buffer.
+	 * 
+	 * @param interval
+	 *            The flush interval.
+	 * @param intervalUnit
+	 *            The time unit of the flush interval.
+	 * @param consolidateOnFlush
+	 *            true if buffers should be consolidated on flush, false
+	 *            otherwise.
+	 * @param flushInIoThread
+	 *            true if delayed flushes should be performed in the I/O thread
+	 *            of the channel, false otherwise.
+	 */
+	public AutoFlushingWriteBatcher(final long interval, final TimeUnit intervalUnit, final boolean consolidateOnFlush,
+			final boolean flushInIoThread) {
+		this(builder().interval(interval, intervalUnit).consolidateOnFlush(consolidateOnFlush)
+				.flushInIoThread(flushInIoThread));
+	}
+
+	/**
+	 * Create a write batcher configured by a builder.
+	 * 
+	 * @param builder
+	 *            The builder.
+	 */
+	protected AutoFlushingWriteBatcher(final Builder builder) {
+		super(builder.consolidateOnFlush);
+		this.intervalNanos = builder.intervalNanos;
+		this.flushInIoThread = builder.flushInIoThread != null ? builder.flushInIoThread : builder.timer == null;
+		this.maxDelayNanos = builder.maxDelayNanos;
+		this.maxBufferSize = builder.maxBufferSize;
+		this.minBufferSize = Math.min(builder.minBufferSize, builder.maxBufferSize);
+		this.adaptive = builder.adaptive;
+		this.ticker = builder.ticker;
+		this.flusher = builder.timer != null ? builder.timer : DefaultFlusher.TIMER;
+		this.flushThreshold = maxBufferSize;
+	}
+
+	/**
+	 * Creates a timer suitable for scheduling the delayed flushes of write
+	 * batchers, running in a daemon thread. Creating one for each I/O worker,
+	 * shared by the batchers of the channels that the worker serves, keeps a
+	 * single timer thread from limiting the rate of delayed flushes.
+	 * 
+	 * @param name
+	 *            The name of the timer thread.
+	 * @return A new timer.
+	 */
+	public static Timer newFlusher(final String name) {
+		return new HashedWheelTimer(new ThreadFactory() {
+			@NotNull
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				thread.setName(name);
+				return thread;
+			}
+		}, 1, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return A builder for a write batcher.
+	 */
+	public static Builder builder() {
+		return new Builder();
 	}
 
 	/**
-	 * Called when the channel is opened.
+	 * Called before the handler is added to a pipeline.
 	 */
 	@Override
-	public void channelOpen(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
-		super.channelOpen(ctx, e);
-		// Schedule a task to flush and enforce the maximum latency that a
-		// message is buffered
-		flusher.scheduleWithFixedDelay(flushTask, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+	public void beforeAdd(final ChannelHandlerContext ctx) throws Exception {
+		super.beforeAdd(ctx);
+		this.ctx = ctx;
 	}
 
 	/**
@@ -150,8 +252,11 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
 	@Override
 	public void channelClosed(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
 		super.channelClosed(ctx, e);
-		// Remove the scheduled flushing task.
-		flusher.remove(flushTask);
+		// Cancel the scheduled flush, if any.
+		final Timeout timeout = flushTimeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
 	}
 
 	/**
@@ -161,20 +266,104 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
 	public void writeRequested(final ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
 		super.writeRequested(ctx, e);
 
-		// Calculate new size of outgoing message buffer
 		final ChannelBuffer data = (ChannelBuffer) e.getMessage();
-		final int newBufferSize = bufferSize.addAndGet(data.readableBytes());
+		buffered(data.readableBytes());
+	}
+
+	/**
+	 * Called when data has been added to the outgoing message buffer. Flushes
+	 * the buffer if writes are sparse or if it has reached its threshold size.
+	 * 
+	 * @param bytes
+	 *            The number of bytes added to the buffer.
+	 */
+	protected void buffered(final int bytes) {
+		// Calculate new size of outgoing message buffer
+		final int newBufferSize = bufferSize.addAndGet(bytes);
 
 		// Calculate how long it was since the last outgoing message
-		final long now = System.nanoTime();
+		final long now = ticker.nanoTime();
 		final long nanosSinceLastWrite = now - lastWrite;
 		lastWrite = now;
 
+		if (adaptive) {
+			adapt(bytes, nanosSinceLastWrite);
+		}
+
 		// Flush if writes are sparse or if the buffer has reached its threshold
 		// size
-		if (nanosSinceLastWrite > maxDelayNanos || newBufferSize > maxBufferSize) {
+		if (nanosSinceLastWrite > maxDelayNanos || newBufferSize > flushThreshold) {
 			flush();
+		} else {
+			scheduleFlush();
+		}
+	}
+
+	/**
+	 * Sets the flush threshold to the number of bytes expected to be written
+	 * during the max delay at the current write rate, within the min and max
+	 * buffer size. If the socket send buffer is not draining, batches are
+	 * allowed to grow to the max buffer size.
+	 */
+	private void adapt(final int bytes, final long nanosSinceLastWrite) {
+		final long nanos = Math.min(Math.max(nanosSinceLastWrite, 1), maxDelayNanos);
+		averageWriteBytes += ADAPTIVE_WEIGHT * (bytes - averageWriteBytes);
+		averageWriteNanos += ADAPTIVE_WEIGHT * (nanos - averageWriteNanos);
+
+		final ChannelHandlerContext ctx = this.ctx;
+		if (ctx != null && !ctx.getChannel().isWritable()) {
+			flushThreshold = maxBufferSize;
+			return;
 		}
+
+		final double expectedBytes = averageWriteBytes * maxDelayNanos / Math.max(averageWriteNanos, 1);
+		flushThreshold = (int) Math.max(minBufferSize, Math.min(maxBufferSize, expectedBytes));
+	}
+
+	/**
+	 * Performs a scheduled flush.
+	 */
+	private void delayedFlush() {
+		flushScheduled.set(false);
+		flush();
+
+		// Writes racing with the flush may have been left behind
+		if (hasBufferedWrites()) {
+			scheduleFlush();
+		}
+	}
+
+	/**
+	 * Schedules a flush after the flush interval, unless one is already
+	 * scheduled.
+	 */
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			flushTimeout = flusher.newTimeout(flushTask, intervalNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * @return true if there are buffered writes that have not been flushed.
+	 */
+	protected boolean hasBufferedWrites() {
+		return !getQueue().isEmpty();
+	}
+
+	/**
+	 * @return The context of the handler, or null if it has not been added to
+	 *         a pipeline.
+	 */
+	protected ChannelHandlerContext getContext() {
+		return ctx;
+	}
+
+	/**
+	 * @return The size in bytes at which the outgoing message buffer is
+	 *         currently flushed.
+	 */
+	protected int getFlushThreshold() {
+		return flushThreshold;
 	}
 
 	@Override
@@ -183,8 +372,135 @@ public class AutoFlushingWriteBatcher extends BufferedWriteHandler {
 
 		// The message buffer is now empty
 		bufferSize.set(0);
+	}
+
+	/**
+	 * The timer of batchers that are not given one, only created if used. Only
+	 * batchers with buffered writes have a flush scheduled, so the cost of the
+	 * timer does not grow with the number of idle channels.
+	 */
+	private static class DefaultFlusher {
+		static final Timer TIMER = newFlusher("netty-write-buffer-flusher");
+	}
 
-		// Record the flush time for use in the scheduled flush task
-		lastFlush = System.nanoTime();
+	/**
+	 * Source of the time used to measure the rate of writes.
+	 */
+	interface Ticker {
+		long nanoTime();
+	}
+
+	private static final Ticker SYSTEM_TICKER = new Ticker() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+
+	/**
+	 * Builder for write batchers.
+	 */
+	public static class Builder {
+
+		private long intervalNanos = DEFAULT_INTERVAL_TIMEUNIT.toNanos(DEFAULT_INTERVAL);
+		private long maxDelayNanos = DEFAULT_MAX_DELAY_TIMEUNIT.toNanos(DEFAULT_MAX_DELAY);
+		private int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+		private int minBufferSize = DEFAULT_MIN_BUFFER_SIZE;
+		private boolean consolidateOnFlush = DEFAULT_CONSOLIDATE_ON_FLUSH;
+		private Boolean flushInIoThread;
+		private boolean adaptive = DEFAULT_ADAPTIVE;
+		private Timer timer;
+		private Ticker ticker = SYSTEM_TICKER;
+
+		protected Builder() {
+		}
+
+		/**
+		 * Set the flush interval, i.e. the maximum amount of time between a
+		 * message being written to the buffer and the buffer being flushed.
+		 */
+		public Builder interval(final long interval, final TimeUnit unit) {
+			this.intervalNanos = unit.toNanos(interval);
+			return this;
+		}
+
+		/**
+		 * Set the max delay. Writes that arrive more than the max delay after
+		 * the previous write are flushed immediately.
+		 */
+		public Builder maxDelay(final long maxDelay, final TimeUnit unit) {
+			this.maxDelayNanos = unit.toNanos(maxDelay);
+			return this;
+		}
+
+		/**
+		 * Set the size in bytes at which the buffer is flushed.
+		 */
+		public Builder maxBufferSize(final int maxBufferSize) {
+			if (maxBufferSize <= 0) {
+				throw new IllegalArgumentException("maxBufferSize: " + maxBufferSize);
+			}
+			this.maxBufferSize = maxBufferSize;
+			return this;
+		}
+
+		/**
+		 * Set the smallest size in bytes at which the buffer is flushed when
+		 * adaptive.
+		 */
+		public Builder minBufferSize(final int minBufferSize) {
+			this.minBufferSize = minBufferSize;
+			return this;
+		}
+
+		/**
+		 * Set whether buffers are consolidated on flush.
+		 */
+		public Builder consolidateOnFlush(final boolean consolidateOnFlush) {
+			this.consolidateOnFlush = consolidateOnFlush;
+			return this;
+		}
+
+		/**
+		 * Set whether delayed flushes are performed in the I/O thread of the
+		 * channel, rather than in the timer thread. By default they are when
+		 * the shared default timer is used, and are not when a timer is set.
+		 */
+		public Builder flushInIoThread(final boolean flushInIoThread) {
+			this.flushInIoThread = flushInIoThread;
+			return this;
+		}
+
+		/**
+		 * Set whether the size at which the buffer is flushed adapts to the
+		 * write rate, between the min and max buffer size. Sustained load
+		 * gives bigger batches, while lighter load is flushed sooner.
+		 */
+		public Builder adaptive(final boolean adaptive) {
+			this.adaptive = adaptive;
+			return this;
+		}
+
+		/**
+		 * Set the timer that schedules delayed flushes, e.g. one created by
+		 * {@link AutoFlushingWriteBatcher#newFlusher(String)} for each I/O
+		 * worker. The timer is not stopped by the batcher.
+		 */
+		public Builder timer(final Timer timer) {
+			this.timer = timer;
+			return this;
+		}
+
+		/**
+		 * Set the source of the time used to measure the rate of writes.
+		 */
+		Builder ticker(final Ticker ticker) {
+			this.ticker = ticker;
+			return this;
+		}
+
+		public AutoFlushingWriteBatcher build() {
+			return new AutoFlushingWriteBatcher(this);
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import com.spotify.netty.handler.queue.AutoFlushingWriteBatcher;
+import com.spotify.netty.handler.queue.ManualTicker;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ZMTPBatchingEncoderTests {
+
+  @Test
+  public void batchingTest() {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Addressed);
+    testBatching(new ZMTPBatchingEncoder(session));
+  }
+
+  @Test
+  public void adaptiveBatchingTest() {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Addressed);
+    testBatching(new ZMTPBatchingEncoder(session, AutoFlushingWriteBatcher.builder()
+        .adaptive(true)
+        .maxBufferSize(64 * 1024)
+        .maxDelay(1, TimeUnit.MILLISECONDS)));
+  }
+
+  @Test
+  public void adaptiveThresholdTest() throws Exception {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral);
+    final ManualTicker ticker = new ManualTicker();
+    final ThresholdEncoder encoder = new ThresholdEncoder(session, ticker.install(
+        AutoFlushingWriteBatcher.builder()
+            .adaptive(true)
+            .minBufferSize(256)
+            .maxBufferSize(64 * 1024)
+            .maxDelay(1, TimeUnit.MILLISECONDS)
+            .timer(new TaskTimer())));
+    final Channel channel = mock(Channel.class);
+    when(channel.isWritable()).thenReturn(true);
+    final ChannelHandlerContext ctx = context(channel);
+    encoder.beforeAdd(ctx);
+
+    final ZMTPMessage message = new ZMTPMessage(
+        Collections.<ZMTPFrame>emptyList(), asList(ZMTPFrame.create(new byte[1000])));
+    final int size = ZMTPUtils.messageSize(message, false);
+
+    // Sparse writes are flushed one by one, at a threshold of about one message
+    for (int i = 0; i < 5; i++) {
+      ticker.advance(2, TimeUnit.MILLISECONDS);
+      encoder.writeRequested(ctx, new DownstreamMessageEvent(
+          channel, Channels.future(channel), message, null));
+    }
+    verify(ctx, times(5)).sendDownstream(any(ChannelEvent.class));
+    final int sparseThreshold = encoder.threshold();
+    assertTrue(sparseThreshold >= size && sparseThreshold < 2 * size);
+
+    // Without draining, batches are allowed to grow to the max buffer size
+    when(channel.isWritable()).thenReturn(false);
+    ticker.advance(2, TimeUnit.MILLISECONDS);
+    encoder.writeRequested(ctx, new DownstreamMessageEvent(
+        channel, Channels.future(channel), message, null));
+    assertEquals(64 * 1024, encoder.threshold());
+    when(channel.isWritable()).thenReturn(true);
+    ticker.advance(2, TimeUnit.MILLISECONDS);
+    encoder.writeRequested(ctx, new DownstreamMessageEvent(
+        channel, Channels.future(channel), message, null));
+    assertEquals(sparseThreshold, encoder.threshold());
+
+    // Dense writes raise the threshold and are flushed in batches
+    for (int i = 0; i < 1000; i++) {
+      ticker.advance(1, TimeUnit.MICROSECONDS);
+      encoder.writeRequested(ctx, new DownstreamMessageEvent(
+          channel, Channels.future(channel), message, null));
+    }
+    assertTrue(encoder.threshold() > 8 * sparseThreshold);
+    verify(ctx, atMost(7 + 250)).sendDownstream(any(ChannelEvent.class));
+  }
+
+  private void testBatching(final ZMTPBatchingEncoder encoder) {
+    final EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(encoder);
+
+    final ChannelBuffer expected = ChannelBuffers.dynamicBuffer();
+    for (int i = 0; i < 1000; i++) {
+      final ZMTPMessage message = new ZMTPMessage(
+          asList(ZMTPFrame.create("envelope")),
+          asList(ZMTPFrame.create("message-" + i), ZMTPFrame.create(new byte[i])));
+      ZMTPUtils.writeMessage(message, expected, true);
+      embedder.offer(message);
+    }
+    final ChannelBuffer raw = ChannelBuffers.copiedBuffer("raw".getBytes());
+    expected.writeBytes(raw, raw.readerIndex(), raw.readableBytes());
+    embedder.offer(raw);
+
+    // Closing the channel flushes the remaining messages
+    embedder.finish();
+
+    final ChannelBuffer written = ChannelBuffers.dynamicBuffer();
+    int writes = 0;
+    ChannelBuffer buffer;
+    while ((buffer = embedder.poll()) != null) {
+      written.writeBytes(buffer);
+      writes++;
+    }
+    assertEquals(expected, written);
+    assertTrue(writes < 1000);
+  }
+
+  @Test
+  public void delayedFlushTest() throws Exception {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral);
+    final TaskTimer timer = new TaskTimer();
+    final EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(
+        new ZMTPBatchingEncoder(session, AutoFlushingWriteBatcher.builder()
+            .maxDelay(1, TimeUnit.MINUTES)
+            .timer(timer)));
+
+    final ChannelBuffer expected = ChannelBuffers.dynamicBuffer();
+    for (int i = 0; i < 10; i++) {
+      final ZMTPMessage message = new ZMTPMessage(
+          Collections.<ZMTPFrame>emptyList(), asList(ZMTPFrame.create("message-" + i)));
+      ZMTPUtils.writeMessage(message, expected, false);
+      embedder.offer(message);
+    }
+
+    // Only the first, sparse write has been flushed, and a single flush is scheduled for the rest
+    final ChannelBuffer written = ChannelBuffers.dynamicBuffer();
+    written.writeBytes(embedder.poll());
+    assertEquals(null, embedder.poll());
+    assertEquals(1, timer.tasks.size());
+
+    // The scheduled flush writes the buffered messages without closing the channel
+    timer.runTasks();
+    ChannelBuffer buffer;
+    while ((buffer = embedder.poll()) != null) {
+      written.writeBytes(buffer);
+    }
+    assertEquals(expected, written);
+  }
+
+  @Test
+  public void timerTest() throws Exception {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral);
+    final TaskTimer timer = new TaskTimer();
+    final EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(
+        new ZMTPBatchingEncoder(session, AutoFlushingWriteBatcher.builder()
+            .maxDelay(1, TimeUnit.MINUTES)
+            .timer(timer)));
+
+    final ZMTPMessage message = new ZMTPMessage(
+        Collections.<ZMTPFrame>emptyList(), asList(ZMTPFrame.create("message")));
+    final ChannelBuffer expected = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(message, expected, false);
+
+    // The first write is flushed right away, as writes are sparse
+    embedder.offer(message);
+    assertEquals(expected, embedder.poll());
+
+    // The next one is flushed by a task scheduled on the given timer
+    embedder.offer(message);
+    assertEquals(null, embedder.poll());
+    assertEquals(1, timer.tasks.size());
+    timer.runTasks();
+    assertEquals(expected, embedder.poll());
+  }
+
+  @Test
+  public void flushInIoThreadTest() throws Exception {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral);
+    final TaskTimer timer = new TaskTimer();
+    final ZMTPBatchingEncoder encoder = new ZMTPBatchingEncoder(
+        session, AutoFlushingWriteBatcher.builder()
+        .maxDelay(1, TimeUnit.MINUTES)
+        .flushInIoThread(true)
+        .timer(timer));
+
+    final Channel channel = mock(Channel.class);
+    final ChannelPipeline pipeline = mock(ChannelPipeline.class);
+    final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    when(ctx.getChannel()).thenReturn(channel);
+    when(ctx.getPipeline()).thenReturn(pipeline);
+    encoder.beforeAdd(ctx);
+
+    final ZMTPMessage message = new ZMTPMessage(
+        Collections.<ZMTPFrame>emptyList(), asList(ZMTPFrame.create("message")));
+    encoder.writeRequested(ctx, new DownstreamMessageEvent(
+        channel, Channels.future(channel), message, null));
+    verify(ctx, times(1)).sendDownstream(any(ChannelEvent.class));
+
+    // The timer only hands the delayed flush over to the I/O thread of the channel
+    encoder.writeRequested(ctx, new DownstreamMessageEvent(
+        channel, Channels.future(channel), message, null));
+    timer.runTasks();
+    verify(ctx, times(1)).sendDownstream(any(ChannelEvent.class));
+    final ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+    verify(pipeline).execute(task.capture());
+
+    task.getValue().run();
+    verify(ctx, times(2)).sendDownstream(any(ChannelEvent.class));
+  }
+
+  @Test
+  public void sharedTimerTest() throws Exception {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral);
+    final ZMTPBatchingEncoder encoder = new ZMTPBatchingEncoder(
+        session, AutoFlushingWriteBatcher.builder().maxDelay(1, TimeUnit.MINUTES));
+    final Channel channel = mock(Channel.class);
+    final ChannelHandlerContext ctx = context(channel);
+    encoder.beforeAdd(ctx);
+
+    final ZMTPMessage message = new ZMTPMessage(
+        Collections.<ZMTPFrame>emptyList(), asList(ZMTPFrame.create("message")));
+    encoder.writeRequested(ctx, new DownstreamMessageEvent(
+        channel, Channels.future(channel), message, null));
+    encoder.writeRequested(ctx, new DownstreamMessageEvent(
+        channel, Channels.future(channel), message, null));
+
+    // The shared timer hands the delayed flush over to the I/O thread rather than writing itself
+    verify(ctx.getPipeline(), timeout(5000)).execute(any(Runnable.class));
+    verify(ctx, times(1)).sendDownstream(any(ChannelEvent.class));
+  }
+
+  private static ChannelHandlerContext context(final Channel channel) {
+    final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+    when(ctx.getChannel()).thenReturn(channel);
+    when(ctx.getPipeline()).thenReturn(mock(ChannelPipeline.class));
+    return ctx;
+  }
+
+  /**
+   * Exposes the current flush threshold of the encoder.
+   */
+  static class ThresholdEncoder extends ZMTPBatchingEncoder {
+
+    ThresholdEncoder(final AbstractZMTPSession session,
+                     final AutoFlushingWriteBatcher.Builder builder) {
+      super(session, builder);
+    }
+
+    int threshold() {
+      return getFlushThreshold();
+    }
+  }
+
+  /**
+   * A timer that only runs the scheduled tasks when told to.
+   */
+  static class TaskTimer implements Timer {
+
+    final List<TimerTask> tasks = new ArrayList<TimerTask>();
+
+    @Override
+    public Timeout newTimeout(final TimerTask task, final long delay, final TimeUnit unit) {
+      tasks.add(task);
+      return null;
+    }
+
+    @Override
+    public Set<Timeout> stop() {
+      return Collections.emptySet();
+    }
+
+    void runTasks() throws Exception {
+      final List<TimerTask> scheduled = new ArrayList<TimerTask>(tasks);
+      tasks.clear();
+      for (final TimerTask task : scheduled) {
+        task.run(null);
+      }
+    }
+  }
+}
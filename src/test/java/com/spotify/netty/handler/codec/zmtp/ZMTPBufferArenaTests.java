@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.junit.Test;
+
+import static junit.framework.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ZMTPBufferArenaTests {
+
+  @Test
+  public void recycleTest() {
+    final ZMTPBufferArena arena = new ZMTPBufferArena(64, false);
+
+    final ChannelFuture first = new DefaultChannelFuture(null, false);
+    final ChannelFuture second = new DefaultChannelFuture(null, false);
+    final ChannelBuffer a = arena.allocate(32, first);
+    final ChannelBuffer b = arena.allocate(32, second);
+    assertSame(a.array(), b.array());
+    assertEquals(32, a.writableBytes());
+    assertEquals(0, a.readableBytes());
+
+    // The first chunk is full and still in use
+    final ChannelBuffer c = arena.allocate(32, new DefaultChannelFuture(null, false));
+    assertNotSame(a.array(), c.array());
+
+    // Completing the writes returns the first chunk to the arena
+    first.setSuccess();
+    second.setFailure(new Exception());
+    final ChannelBuffer d = arena.allocate(40, new DefaultChannelFuture(null, false));
+    assertSame(a.array(), d.array());
+
+    // Oversized buffers are allocated outside of the arena
+    final ChannelBuffer e = arena.allocate(128, new DefaultChannelFuture(null, false));
+    assertEquals(128, e.capacity());
+  }
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Arrays.asList;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+import static org.junit.Assert.assertArrayEquals;
+
+public class ZMTPFramingDecoderTests {
+
+  private static final byte[] REMOTE_IDENTITY = "remote".getBytes();
+
+  @Test
+  public void batchDecodingTest() {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral, "local".getBytes());
+    final DecoderEmbedder<Object> embedder =
+        new DecoderEmbedder<Object>(new ZMTPFramingDecoder(session, true));
+
+    // Our identity is sent on connect
+    assertEquals(identity("local".getBytes()), embedder.poll());
+
+    final List<ZMTPMessage> messages = new ArrayList<ZMTPMessage>();
+    final ChannelBuffer data = identity(REMOTE_IDENTITY);
+    for (int i = 0; i < 10; i++) {
+      final ZMTPMessage message = new ZMTPMessage(
+          new ArrayList<ZMTPFrame>(), asList(ZMTPFrame.create("message-" + i)));
+      ZMTPUtils.writeMessage(message, data, false);
+      messages.add(message);
+    }
+    embedder.offer(data);
+
+    @SuppressWarnings("unchecked")
+    final List<ZMTPIncomingMessage> batch = (List<ZMTPIncomingMessage>) embedder.poll();
+    assertEquals(messages.size(), batch.size());
+    for (int i = 0; i < messages.size(); i++) {
+      assertEquals(messages.get(i), batch.get(i).getMessage());
+    }
+    assertArrayEquals(REMOTE_IDENTITY, session.getRemoteIdentity());
+    assertEquals(null, embedder.poll());
+  }
+
+  @Test
+  public void zmtp30HandshakeTest() {
+    final ZMTPSession2 session =
+        new ZMTPSession2(ZMTPSocketType.DEALER, "local".getBytes(), ZMTPRevision.ZMTP_30);
+    final DecoderEmbedder<Object> embedder = codec(session, new ZMTPFramingDecoder(session));
+
+    // The signature is sent first, followed by the revision once the remote signature is received
+    assertEquals(signature("local".getBytes()), embedder.poll());
+    embedder.offer(signature(REMOTE_IDENTITY));
+    assertEquals(bytes(0x03), embedder.poll());
+
+    // The rest of the greeting and the READY command follow the remote revision
+    embedder.offer(bytes(0x03));
+    final ChannelBuffer greeting = (ChannelBuffer) embedder.poll();
+    assertEquals(greeting30(), greeting.readSlice(53));
+    assertEquals(ready("DEALER", "local".getBytes()), greeting);
+
+    // Messages right after the READY command are decoded
+    final ZMTPMessage message = new ZMTPMessage(
+        new ArrayList<ZMTPFrame>(), asList(ZMTPFrame.create("foo"), ZMTPFrame.create("bar")));
+    final ChannelBuffer data = greeting30();
+    data.writeBytes(ready("ROUTER", REMOTE_IDENTITY));
+    ZMTPUtils.writeMessage(message, data, false, ZMTPRevision.ZMTP_30);
+    embedder.offer(data);
+
+    assertEquals(message, ((ZMTPIncomingMessage) embedder.poll()).getMessage());
+    assertArrayEquals(REMOTE_IDENTITY, session.getRemoteIdentity());
+    assertEquals(ZMTPRevision.ZMTP_30, session.getRevision());
+  }
+
+  @Test
+  public void zmtp20DowngradeTest() {
+    final ZMTPSession2 session =
+        new ZMTPSession2(ZMTPSocketType.DEALER, "local".getBytes(), ZMTPRevision.ZMTP_30);
+    final DecoderEmbedder<Object> embedder = codec(session, new ZMTPFramingDecoder(session));
+
+    assertEquals(signature("local".getBytes()), embedder.poll());
+    embedder.offer(signature(REMOTE_IDENTITY));
+    assertEquals(bytes(0x03), embedder.poll());
+
+    // A ZMTP/2.0 peer gets the socket type and identity
+    embedder.offer(bytes(0x01));
+    final ChannelBuffer greeting = bytes(ZMTPSocketType.DEALER.getEncodedValue());
+    ZMTPUtils.writeFrame(ZMTPFrame.create("local"), greeting, false, ZMTPRevision.ZMTP_20);
+    assertEquals(greeting, embedder.poll());
+
+    final ZMTPMessage message = new ZMTPMessage(
+        new ArrayList<ZMTPFrame>(), asList(ZMTPFrame.create("foo")));
+    final ChannelBuffer data = bytes(ZMTPSocketType.ROUTER.getEncodedValue());
+    ZMTPUtils.writeFrame(ZMTPFrame.create(REMOTE_IDENTITY), data, false, ZMTPRevision.ZMTP_20);
+    ZMTPUtils.writeMessage(message, data, false, ZMTPRevision.ZMTP_20);
+    embedder.offer(data);
+
+    assertEquals(message, ((ZMTPIncomingMessage) embedder.poll()).getMessage());
+    assertArrayEquals(REMOTE_IDENTITY, session.getRemoteIdentity());
+    assertEquals(ZMTPRevision.ZMTP_20, session.getRevision());
+  }
+
+  @Test
+  public void zmtp10DowngradeTest() {
+    final ZMTPSession2 session =
+        new ZMTPSession2(ZMTPSocketType.DEALER, "local".getBytes(), ZMTPRevision.ZMTP_30);
+    final DecoderEmbedder<Object> embedder = codec(session, new ZMTPFramingDecoder(session));
+
+    assertEquals(signature("local".getBytes()), embedder.poll());
+
+    // A ZMTP/1.0 peer sends its identity right away, and gets the rest of ours
+    final ZMTPMessage message = new ZMTPMessage(
+        new ArrayList<ZMTPFrame>(), asList(ZMTPFrame.create("foo")));
+    final ChannelBuffer data = identity(REMOTE_IDENTITY);
+    ZMTPUtils.writeMessage(message, data, false);
+    embedder.offer(data);
+
+    assertEquals(ChannelBuffers.wrappedBuffer("local".getBytes()), embedder.poll());
+    assertEquals(message, ((ZMTPIncomingMessage) embedder.poll()).getMessage());
+    assertArrayEquals(REMOTE_IDENTITY, session.getRemoteIdentity());
+    assertEquals(ZMTPRevision.ZMTP_10, session.getRevision());
+  }
+
+  @Test
+  public void pipelinedHandshakeTest() {
+    final ZMTPSession2 session =
+        new ZMTPSession2(ZMTPSocketType.DEALER, "local".getBytes(), ZMTPRevision.ZMTP_30);
+    final DecoderEmbedder<Object> embedder =
+        codec(session, ZMTPFramingDecoder.builder(session).pipelineHandshake(true).build());
+    final Channel channel = embedder.getPipeline().getChannel();
+
+    // Messages written right away are held until the revision is known
+    final ZMTPMessage message = new ZMTPMessage(
+        new ArrayList<ZMTPFrame>(), asList(ZMTPFrame.create("foo")));
+    final ChannelFuture future = Channels.write(channel, message);
+    assertEquals(signature("local".getBytes()), embedder.poll());
+    assertEquals(null, embedder.poll());
+    assertFalse(future.isDone());
+
+    // And written right after our greeting, before the handshake is complete
+    embedder.offer(signature(REMOTE_IDENTITY));
+    assertEquals(bytes(0x03), embedder.poll());
+    embedder.offer(bytes(0x03));
+    final ChannelBuffer greeting = (ChannelBuffer) embedder.poll();
+    assertEquals(greeting30(), greeting.readSlice(53));
+    assertEquals(ready("DEALER", "local".getBytes()), greeting);
+    final ChannelBuffer expected = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(message, expected, false, ZMTPRevision.ZMTP_30);
+    assertEquals(expected, embedder.poll());
+    assertEquals(null, session.getRemoteIdentity());
+
+    // Later messages are written right away
+    Channels.write(channel, message);
+    assertEquals(expected, embedder.poll());
+  }
+
+  @Test
+  public void segmentedHandshakeTest() {
+    final ZMTPMessage message = new ZMTPMessage(
+        new ArrayList<ZMTPFrame>(), asList(ZMTPFrame.create("foo")));
+
+    // ZMTP/3.0 greeting and READY command
+    final ZMTPSession2 session =
+        new ZMTPSession2(ZMTPSocketType.DEALER, "local".getBytes(), ZMTPRevision.ZMTP_30);
+    final ChannelBuffer data = signature(REMOTE_IDENTITY);
+    data.writeByte(0x03);
+    data.writeBytes(greeting30());
+    data.writeBytes(ready("ROUTER", REMOTE_IDENTITY));
+    ZMTPUtils.writeMessage(message, data, false, ZMTPRevision.ZMTP_30);
+    assertEquals(message, decodeByteByByte(session, data));
+    assertArrayEquals(REMOTE_IDENTITY, session.getRemoteIdentity());
+
+    // ZMTP/1.0 identity long enough to need a long length
+    final ZMTPSession session10 = new ZMTPSession(ZMTPConnectionType.Neutral, "local".getBytes());
+    final byte[] longIdentity = new byte[300];
+    final ChannelBuffer data10 = identity(longIdentity);
+    ZMTPUtils.writeMessage(message, data10, false);
+    assertEquals(message, decodeByteByByte(session10, data10));
+    assertArrayEquals(longIdentity, session10.getRemoteIdentity());
+  }
+
+  /**
+   * Feeds data to a decoder a byte at a time, returning the only message decoded.
+   */
+  private static ZMTPMessage decodeByteByByte(final AbstractZMTPSession session,
+                                              final ChannelBuffer data) {
+    final DecoderEmbedder<Object> embedder = codec(session, new ZMTPFramingDecoder(session));
+    final List<ZMTPMessage> messages = new ArrayList<ZMTPMessage>();
+    while (data.readable()) {
+      embedder.offer(data.readSlice(1));
+      Object product;
+      while ((product = embedder.poll()) != null) {
+        if (product instanceof ZMTPIncomingMessage) {
+          messages.add(((ZMTPIncomingMessage) product).getMessage());
+        }
+      }
+    }
+    assertEquals(1, messages.size());
+    return messages.get(0);
+  }
+
+  @Test
+  public void incompatibleSocketTypeTest() {
+    final ZMTPSession2 session =
+        new ZMTPSession2(ZMTPSocketType.DEALER, "local".getBytes(), ZMTPRevision.ZMTP_30);
+    final DecoderEmbedder<Object> embedder = codec(session, new ZMTPFramingDecoder(session));
+
+    final ChannelBuffer data = signature(REMOTE_IDENTITY);
+    data.writeByte(0x03);
+    data.writeBytes(greeting30());
+    data.writeBytes(ready("PUB", REMOTE_IDENTITY));
+    try {
+      embedder.offer(data);
+      fail("Expected handshake to fail");
+    } catch (CodecEmbedderException e) {
+      assertTrue(e.getCause() instanceof ZMTPException);
+    }
+  }
+
+  @Test
+  public void largeFrameCumulationTest() {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral, "local".getBytes());
+    final List<ChannelBuffer> cumulations = new ArrayList<ChannelBuffer>();
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        new ZMTPFramingDecoder(session) {
+          @Override
+          protected Object decode(final ChannelHandlerContext ctx, final Channel channel,
+                                  final ChannelBuffer buffer) throws Exception {
+            cumulations.add(buffer);
+            return super.decode(ctx, channel, buffer);
+          }
+        });
+    embedder.poll();
+    embedder.offer(identity(REMOTE_IDENTITY));
+
+    final byte[] large = new byte[100000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    final ZMTPMessage message = new ZMTPMessage(
+        new ArrayList<ZMTPFrame>(), asList(ZMTPFrame.create(large)));
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(message, data, false);
+    cumulations.clear();
+    int received = 0;
+    while (data.readable()) {
+      final int size = Math.min(4096, data.readableBytes());
+      received += size;
+      embedder.offer(data.readSlice(size));
+
+      // The buffer grows with the data received
+      assertTrue(cumulations.get(cumulations.size() - 1).capacity() <= Math.max(8192, 2 * received));
+    }
+    assertEquals(new ZMTPIncomingMessage(session, message), embedder.poll());
+
+    // The frame ends up in a buffer of its exact size, after doubling from 8192 bytes. Apart from
+    // those buffers, decode only sees the read that started the frame and, before each
+    // reallocation, the full buffer cumulated with the next read
+    final ChannelBuffer frameCumulation = cumulations.get(cumulations.size() - 1);
+    assertEquals(large.length, frameCumulation.capacity());
+    int allocations = 1;
+    for (int capacity = 8192; capacity < large.length; capacity *= 2) {
+      allocations++;
+    }
+    final Set<ChannelBuffer> distinct = Collections.newSetFromMap(
+        new IdentityHashMap<ChannelBuffer, Boolean>());
+    distinct.addAll(cumulations);
+    assertTrue(distinct.size() <= 2 * allocations);
+  }
+
+  @Test
+  public void hostileFrameHeaderTest() {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral, "local".getBytes());
+    final List<ChannelBuffer> cumulations = new ArrayList<ChannelBuffer>();
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        new ZMTPFramingDecoder(session) {
+          @Override
+          protected Object decode(final ChannelHandlerContext ctx, final Channel channel,
+                                  final ChannelBuffer buffer) throws Exception {
+            cumulations.add(buffer);
+            return super.decode(ctx, channel, buffer);
+          }
+        });
+    embedder.poll();
+    embedder.offer(identity(REMOTE_IDENTITY));
+
+    // A header announcing a huge frame does not allocate a buffer of that size
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.encodeLength(1 + 50000000, data);
+    data.writeByte(0);
+    data.writeBytes("foo".getBytes());
+    embedder.offer(data);
+    embedder.offer(ChannelBuffers.wrappedBuffer("bar".getBytes()));
+    for (final ChannelBuffer cumulation : cumulations) {
+      assertTrue(cumulation.capacity() <= 8192);
+    }
+  }
+
+  @Test
+  public void limitCloseTest() {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral, "local".getBytes());
+    final ZMTPLimits limits = ZMTPLimits.builder()
+        .maxFrameSize(100)
+        .action(ZMTPLimits.Action.CLOSE)
+        .build();
+    final DecoderEmbedder<Object> embedder =
+        new DecoderEmbedder<Object>(ZMTPFramingDecoder.builder(session).limits(limits).build());
+    final AtomicBoolean closed = new AtomicBoolean();
+    embedder.getPipeline().addFirst("close", new SimpleChannelDownstreamHandler() {
+      @Override
+      public void closeRequested(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
+        closed.set(true);
+      }
+    });
+    assertEquals(identity("local".getBytes()), embedder.poll());
+
+    // The channel is closed as soon as the header of the large frame is received
+    final ChannelBuffer data = identity(REMOTE_IDENTITY);
+    ZMTPUtils.encodeLength(1 + 1000, data);
+    data.writeByte(0);
+    embedder.offer(data);
+    assertTrue(closed.get());
+    assertEquals(null, embedder.poll());
+
+    // Anything received after that is discarded
+    final ChannelBuffer message = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeFrame(ZMTPFrame.create("foo"), message, false);
+    embedder.offer(message);
+    assertEquals(null, embedder.poll());
+  }
+
+  @Test
+  public void batchLimitCloseTest() {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral, "local".getBytes());
+    final ZMTPLimits limits = ZMTPLimits.builder()
+        .maxFrameSize(100)
+        .action(ZMTPLimits.Action.CLOSE)
+        .build();
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        ZMTPFramingDecoder.builder(session).batchMessages(true).limits(limits).build());
+    final AtomicBoolean closed = new AtomicBoolean();
+    embedder.getPipeline().addFirst("close", new SimpleChannelDownstreamHandler() {
+      @Override
+      public void closeRequested(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
+        closed.set(true);
+      }
+    });
+    assertEquals(identity("local".getBytes()), embedder.poll());
+
+    // The messages parsed before the large frame are delivered before the channel is closed
+    final ChannelBuffer data = identity(REMOTE_IDENTITY);
+    final ZMTPMessage foo = ZMTPMessage.fromContent(ZMTPFrame.create("foo"));
+    final ZMTPMessage bar = ZMTPMessage.fromContent(ZMTPFrame.create("bar"));
+    ZMTPUtils.writeMessage(foo, data, false);
+    ZMTPUtils.writeMessage(bar, data, false);
+    ZMTPUtils.encodeLength(1 + 1000, data);
+    data.writeByte(0);
+    embedder.offer(data);
+    assertTrue(closed.get());
+    @SuppressWarnings("unchecked")
+    final List<ZMTPIncomingMessage> batch = (List<ZMTPIncomingMessage>) embedder.poll();
+    assertEquals(2, batch.size());
+    assertEquals(foo, batch.get(0).getMessage());
+    assertEquals(bar, batch.get(1).getMessage());
+    assertEquals(null, embedder.poll());
+  }
+
+  @Test
+  public void pooledTest() {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Addressed, "local".getBytes());
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        ZMTPFramingDecoder.builder(session).pooled(true).detectLeaks(true).build());
+    assertEquals(identity("local".getBytes()), embedder.poll());
+    embedder.offer(identity(REMOTE_IDENTITY));
+
+    final ZMTPMessage message = new ZMTPMessage(asList(ZMTPFrame.create("envelope")),
+                                                asList(ZMTPFrame.create("foo"),
+                                                       ZMTPFrame.create("bar")));
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(message, data, true);
+
+    // Messages are released before the next one is decoded, so the same message is reused, and
+    // the delimiter frame is reused within a message
+    final Set<ZMTPIncomingMessage> incoming = Collections.newSetFromMap(
+        new IdentityHashMap<ZMTPIncomingMessage, Boolean>());
+    final Set<ZMTPMessage> messages = Collections.newSetFromMap(
+        new IdentityHashMap<ZMTPMessage, Boolean>());
+    final Set<ZMTPFrame> frames = Collections.newSetFromMap(
+        new IdentityHashMap<ZMTPFrame, Boolean>());
+    ZMTPIncomingMessage last = null;
+    for (int i = 0; i < 10; i++) {
+      embedder.offer(data.duplicate());
+      last = (ZMTPIncomingMessage) embedder.poll();
+      assertEquals(message, last.getMessage());
+      incoming.add(last);
+      messages.add(last.getMessage());
+      frames.addAll(last.getMessage().getEnvelope());
+      frames.addAll(last.getMessage().getContent());
+      last.release();
+    }
+    assertEquals(1, incoming.size());
+    assertEquals(1, messages.size());
+    assertEquals(3, frames.size());
+
+    try {
+      last.release();
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  /**
+   * Create an embedder with an encoder and a decoder, capturing both the decoded messages and the
+   * data written by the decoder during the handshake.
+   */
+  private static DecoderEmbedder<Object> codec(final AbstractZMTPSession session,
+                                               final ZMTPFramingDecoder decoder) {
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(decoder);
+    // The signature is written on connect, but it is passed through by the encoder anyway
+    embedder.getPipeline().addFirst("encoder", new ZMTPFramingEncoder(session));
+    return embedder;
+  }
+
+  private static ChannelBuffer signature(final byte[] identity) {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    buffer.writeByte(0xFF);
+    buffer.writeLong(identity.length + 1);
+    buffer.writeByte(0x7F);
+    return buffer;
+  }
+
+  /**
+   * The ZMTP/3.0 greeting after the signature and major version.
+   */
+  private static ChannelBuffer greeting30() {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    buffer.writeByte(0x00);
+    buffer.writeBytes("NULL".getBytes());
+    buffer.writeZero(16);
+    buffer.writeZero(32);
+    return buffer;
+  }
+
+  private static ChannelBuffer ready(final String socketType, final byte[] identity) {
+    final ChannelBuffer body = ChannelBuffers.dynamicBuffer();
+    body.writeByte(5);
+    body.writeBytes("READY".getBytes());
+    body.writeByte(11);
+    body.writeBytes("Socket-Type".getBytes());
+    body.writeInt(socketType.length());
+    body.writeBytes(socketType.getBytes());
+    body.writeByte(8);
+    body.writeBytes("Identity".getBytes());
+    body.writeInt(identity.length);
+    body.writeBytes(identity);
+
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeCommand(ZMTPFrame.wrap(body), buffer);
+    return buffer;
+  }
+
+  private static ChannelBuffer bytes(final int... values) {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    for (final int value : values) {
+      buffer.writeByte(value);
+    }
+    return buffer;
+  }
+
+  private static ChannelBuffer identity(final byte[] identity) {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeFrame(ZMTPFrame.create(identity), buffer, false);
+    return buffer;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.Boolean.FALSE;
+import static java.lang.Boolean.TRUE;
+import static java.util.Arrays.asList;
+import static junit.framework.Assert.assertEquals;
+
+public class ZMTPFramingEncoderTests {
+
+  @Test
+  public void wrappedEncodingTest() {
+    final List<ZMTPFrame> frames = new ArrayList<ZMTPFrame>();
+    for (int size : asList(0, 1, 100, 511, 512, 4096, 70000)) {
+      frames.add(ZMTPFrame.create(new byte[size]));
+    }
+
+    final ZMTPBufferArena arena = new ZMTPBufferArena(1024, false);
+
+    for (boolean enveloped : asList(TRUE, FALSE)) {
+      final ZMTPSession session = new ZMTPSession(
+          enveloped ? ZMTPConnectionType.Addressed : ZMTPConnectionType.Neutral);
+      for (ZMTPFrame first : frames) {
+        for (ZMTPFrame second : frames) {
+          final ZMTPMessage message = new ZMTPMessage(asList(first), asList(second, first));
+          final ChannelBuffer expected = ChannelBuffers.dynamicBuffer();
+          ZMTPUtils.writeMessage(message, expected, enveloped);
+          assertEquals(expected, encode(new ZMTPFramingEncoder(session, true), message));
+          assertEquals(expected, encode(new ZMTPFramingEncoder(session, false), message));
+          assertEquals(expected, encode(new ZMTPFramingEncoder(session, true, arena), message));
+          assertEquals(expected, encode(new ZMTPFramingEncoder(session, false, arena), message));
+        }
+      }
+    }
+  }
+
+  private ChannelBuffer encode(final ZMTPFramingEncoder encoder, final ZMTPMessage message) {
+    final EncoderEmbedder<ChannelBuffer> embedder = new EncoderEmbedder<ChannelBuffer>(encoder);
+    embedder.offer(message);
+    return embedder.poll();
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static java.util.Arrays.asList;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+public class ZMTPLoadBalancerTests {
+
+  @Test
+  public void roundRobinTest() {
+    final ZMTPLoadBalancer balancer = new ZMTPLoadBalancer();
+    assertNull(balancer.send(message(1)));
+
+    final DecoderEmbedder<Object> foo = connect(balancer);
+    final DecoderEmbedder<Object> bar = connect(balancer);
+    assertEquals(2, balancer.size());
+
+    for (int i = 0; i < 4; i++) {
+      balancer.send(message(i));
+    }
+    assertEquals(message(0), foo.poll());
+    assertEquals(message(2), foo.poll());
+    assertEquals(message(1), bar.poll());
+    assertEquals(message(3), bar.poll());
+
+    // Disconnected peers leave the group
+    foo.finish();
+    assertEquals(1, balancer.size());
+    balancer.send(message(4));
+    balancer.send(message(5));
+    assertEquals(message(4), bar.poll());
+    assertEquals(message(5), bar.poll());
+  }
+
+  @Test
+  public void leastLoadedTest() {
+    final ZMTPLoadBalancer balancer = new ZMTPLoadBalancer(ZMTPLoadBalancer.Strategy.LEAST_LOADED);
+    final DecoderEmbedder<Object> foo = connect(balancer);
+    final DecoderEmbedder<Object> bar = connect(balancer);
+
+    // The writes of the embedders never complete, so all sent bytes remain pending
+    balancer.send(message(100));
+    balancer.send(message(10));
+    balancer.send(message(10));
+    balancer.send(message(10));
+    assertEquals(message(100), foo.poll());
+    assertEquals(null, foo.poll());
+    assertEquals(message(10), bar.poll());
+    assertEquals(message(10), bar.poll());
+    assertEquals(message(10), bar.poll());
+  }
+
+  private static ZMTPMessage message(final int size) {
+    return new ZMTPMessage(Collections.<ZMTPFrame>emptyList(),
+                           asList(ZMTPFrame.create(new byte[size])));
+  }
+
+  /**
+   * Connect a session to a load balancer and complete the ZMTP/1.0 handshake.
+   */
+  private static DecoderEmbedder<Object> connect(final ZMTPLoadBalancer balancer) {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral, "local".getBytes());
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        new ZMTPFramingDecoder(session), balancer.newHandler(session));
+    embedder.poll();
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeFrame(ZMTPFrame.create("remote"), data, false);
+    embedder.offer(data);
+    return embedder;
+  }
+}
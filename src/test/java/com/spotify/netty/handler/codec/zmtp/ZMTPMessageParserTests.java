@@ -0,0 +1,296 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+public class ZMTPMessageParserTests {
+
+  private static final List<ZMTPMessage> MESSAGES = asList(
+      new ZMTPMessage(asList(ZMTPFrame.create("envelope")),
+                      asList(ZMTPFrame.create("foo"), ZMTPFrame.create(new byte[300]))),
+      new ZMTPMessage(new ArrayList<ZMTPFrame>(),
+                      asList(ZMTPFrame.create(new byte[1000]))),
+      new ZMTPMessage(asList(ZMTPFrame.create("a"), ZMTPFrame.create("b")),
+                      asList(ZMTPFrame.create("bar"))));
+
+  @Test
+  public void segmentedParseTest() {
+    segmentedParseTest(ZMTPRevision.ZMTP_10, null, MESSAGES);
+    segmentedParseTest(ZMTPRevision.ZMTP_30, null, MESSAGES);
+  }
+
+  @Test
+  public void subscriptionTest() {
+    final ZMTPSubscriptions subscriptions = new ZMTPSubscriptions();
+    subscriptions.subscribe("ba".getBytes());
+    final List<ZMTPMessage> expected = asList(MESSAGES.get(2));
+    segmentedParseTest(ZMTPRevision.ZMTP_10, subscriptions, expected);
+    segmentedParseTest(ZMTPRevision.ZMTP_30, subscriptions, expected);
+
+    subscriptions.subscribe("foo".getBytes());
+    subscriptions.subscribe("foo".getBytes());
+    subscriptions.unsubscribe("foo".getBytes());
+    final List<ZMTPMessage> matching = asList(MESSAGES.get(0), MESSAGES.get(2));
+    segmentedParseTest(ZMTPRevision.ZMTP_10, subscriptions, matching);
+    segmentedParseTest(ZMTPRevision.ZMTP_30, subscriptions, matching);
+  }
+
+  private void segmentedParseTest(final ZMTPRevision revision,
+                                  final ZMTPSubscriptions subscriptions,
+                                  final List<ZMTPMessage> expected) {
+    final ChannelBuffer serialized = ChannelBuffers.dynamicBuffer();
+    for (final ZMTPMessage message : MESSAGES) {
+      ZMTPUtils.writeMessage(message, serialized, true, revision);
+    }
+
+    for (int segmentSize = 1; segmentSize < 20; segmentSize++) {
+      final ZMTPMessageParser parser = new ZMTPMessageParser(true, revision, subscriptions);
+      final ChannelBuffer data = serialized.duplicate();
+      final ChannelBuffer cumulation = ChannelBuffers.dynamicBuffer();
+      final List<ZMTPMessage> parsed = new ArrayList<ZMTPMessage>();
+
+      // Feed the parser a few bytes at a time, as if the data was arriving in many reads
+      while (data.readable()) {
+        cumulation.writeBytes(data, Math.min(segmentSize, data.readableBytes()));
+        ZMTPMessage message;
+        while ((message = parser.parse(cumulation)) != null) {
+          parsed.add(message);
+        }
+      }
+
+      assertEquals(expected, parsed);
+      assertEquals(0, cumulation.readableBytes());
+    }
+  }
+
+  @Test
+  public void streamingTest() {
+    final byte[] large = new byte[1000];
+    for (int i = 0; i < large.length; i++) {
+      large[i] = (byte) i;
+    }
+    final ZMTPMessage message = new ZMTPMessage(
+        asList(ZMTPFrame.create("envelope")),
+        asList(ZMTPFrame.create("head"), ZMTPFrame.create(large), ZMTPFrame.create("tail")));
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(message, data, true, ZMTPRevision.ZMTP_30);
+    ZMTPUtils.writeMessage(MESSAGES.get(0), data, true, ZMTPRevision.ZMTP_30);
+
+    final ZMTPMessageParser parser = new ZMTPMessageParser(true, ZMTPRevision.ZMTP_30, null, 500);
+    final List<Object> parsed = new ArrayList<Object>();
+    final ChannelBuffer cumulation = ChannelBuffers.dynamicBuffer();
+    while (data.readable()) {
+      cumulation.writeBytes(data, Math.min(64, data.readableBytes()));
+      Object object;
+      while ((object = parser.parseStreaming(cumulation)) != null) {
+        parsed.add(object);
+      }
+      // The large frame is never accumulated
+      assertTrue(cumulation.readableBytes() < 500);
+    }
+
+    // The frames preceding the large frame
+    final ZMTPFrameStart start = (ZMTPFrameStart) parsed.get(0);
+    assertEquals(new ZMTPMessage(asList(ZMTPFrame.create("envelope")),
+                                 asList(ZMTPFrame.create("head"))), start.getHead());
+    assertEquals(large.length, start.getSize());
+
+    // The large frame, in chunks
+    final ChannelBuffer streamed = ChannelBuffers.dynamicBuffer();
+    int i = 1;
+    ZMTPFrameChunk chunk;
+    do {
+      chunk = (ZMTPFrameChunk) parsed.get(i++);
+      streamed.writeBytes(chunk.getData());
+    } while (!chunk.isLast());
+    assertTrue(chunk.hasMore());
+    assertEquals(ChannelBuffers.wrappedBuffer(large), streamed);
+
+    // The frames following the large frame, followed by the next message
+    assertEquals(new ZMTPMessage(new ArrayList<ZMTPFrame>(), asList(ZMTPFrame.create("tail"))),
+                 parsed.get(i++));
+    assertEquals(MESSAGES.get(0), parsed.get(i++));
+    assertEquals(i, parsed.size());
+  }
+
+  @Test
+  public void subscribedStreamingTest() {
+    final ZMTPSubscriptions subscriptions = new ZMTPSubscriptions();
+    subscriptions.subscribe("topic".getBytes());
+    final byte[] large = new byte[1000];
+    System.arraycopy("topic".getBytes(), 0, large, 0, 5);
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(ZMTPMessage.fromContent(ZMTPFrame.create(large)), data, false,
+                           ZMTPRevision.ZMTP_30);
+
+    // The header of the large frame arrives before the prefix needed to match it
+    final ZMTPMessageParser parser = new ZMTPMessageParser(
+        false, ZMTPRevision.ZMTP_30, subscriptions, 500);
+    final ChannelBuffer cumulation = ChannelBuffers.dynamicBuffer();
+    cumulation.writeBytes(data, 1 + 8 + 2);
+    assertEquals(null, parser.parseStreaming(cumulation));
+
+    // Each object returned consumes data, as required by a frame decoder
+    final List<Object> parsed = new ArrayList<Object>();
+    while (data.readable()) {
+      cumulation.writeBytes(data, Math.min(64, data.readableBytes()));
+      while (true) {
+        final int index = cumulation.readerIndex();
+        final Object object = parser.parseStreaming(cumulation);
+        if (object == null) {
+          break;
+        }
+        assertTrue(cumulation.readerIndex() > index);
+        parsed.add(object);
+      }
+    }
+
+    final ZMTPFrameStart start = (ZMTPFrameStart) parsed.get(0);
+    assertEquals(large.length, start.getSize());
+    final ChannelBuffer streamed = ChannelBuffers.dynamicBuffer();
+    for (final Object chunk : parsed.subList(1, parsed.size())) {
+      streamed.writeBytes(((ZMTPFrameChunk) chunk).getData());
+    }
+    assertTrue(((ZMTPFrameChunk) parsed.get(parsed.size() - 1)).isLast());
+    assertEquals(ChannelBuffers.wrappedBuffer(large), streamed);
+  }
+
+  @Test
+  public void pendingFrameSizeTest() {
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.encodeLength(1 + 100000, data);
+    data.writeByte(0);
+    data.writeBytes("to".getBytes());
+
+    // A frame is awaited as a whole
+    final ZMTPMessageParser plain = new ZMTPMessageParser(false);
+    assertEquals(null, plain.parse(data.duplicate()));
+    assertEquals(100000, plain.pendingFrameSize());
+
+    // But not while waiting for the prefix to match against the subscriptions
+    final ZMTPSubscriptions subscriptions = new ZMTPSubscriptions();
+    subscriptions.subscribe("topic".getBytes());
+    final ZMTPMessageParser subscribed = new ZMTPMessageParser(
+        false, ZMTPRevision.ZMTP_10, subscriptions);
+    assertEquals(null, subscribed.parse(data.duplicate()));
+    assertEquals(-1, subscribed.pendingFrameSize());
+
+    // Nor when it is discarded or streamed
+    final ChannelBuffer unmatched = data.duplicate();
+    unmatched.writeBytes("xyz".getBytes());
+    assertEquals(null, subscribed.parse(unmatched));
+    assertEquals(-1, subscribed.pendingFrameSize());
+    final ZMTPMessageParser streaming = new ZMTPMessageParser(
+        false, ZMTPRevision.ZMTP_10, null, 1024);
+    assertTrue(streaming.parseStreaming(data.duplicate()) instanceof ZMTPFrameStart);
+    assertEquals(-1, streaming.pendingFrameSize());
+  }
+
+  @Test
+  public void limitsTest() {
+    // A frame header announcing a huge frame, followed by a message within the limits
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    data.writeByte(ZMTPUtils.LONG_FLAG);
+    data.writeLong(1L << 31);
+    final ChannelBuffer valid = serialize(MESSAGES.get(2));
+
+    final ZMTPLimits.Builder limits = ZMTPLimits.builder().maxFrameSize(1024);
+    final ZMTPMessageParser failing = new ZMTPMessageParser(
+        true, ZMTPRevision.ZMTP_30, null, Integer.MAX_VALUE, limits.build());
+    try {
+      failing.parse(data.duplicate());
+      fail("Expected the frame size limit to be exceeded");
+    } catch (ZMTPLimitException expected) {
+    }
+
+    // The message exceeding the limit is skipped if parsing continues after the exception
+    final ZMTPMessage oversized = new ZMTPMessage(asList(ZMTPFrame.create("envelope")),
+                                                  asList(ZMTPFrame.create(new byte[100])));
+    final ChannelBuffer buffer = serialize(oversized, MESSAGES.get(2));
+    final ZMTPMessageParser failed = new ZMTPMessageParser(
+        true, ZMTPRevision.ZMTP_30, null, Integer.MAX_VALUE,
+        ZMTPLimits.builder().maxFrameSize(10).build());
+    try {
+      failed.parse(buffer);
+      fail("Expected the frame size limit to be exceeded");
+    } catch (ZMTPLimitException expected) {
+    }
+    assertEquals(MESSAGES.get(2), failed.parse(buffer));
+    assertEquals(0, buffer.readableBytes());
+
+    // Discarded messages are skipped as the data arrives, without buffering it
+    final ZMTPMessageParser discarding = new ZMTPMessageParser(
+        true, ZMTPRevision.ZMTP_30, null, Integer.MAX_VALUE,
+        limits.action(ZMTPLimits.Action.DISCARD).build());
+    assertEquals(null, discarding.parse(data));
+    assertEquals(0, data.readableBytes());
+    final ChannelBuffer chunk = ChannelBuffers.buffer(4096);
+    for (long remaining = 1L << 31; remaining > 0; remaining -= chunk.capacity()) {
+      chunk.setIndex(0, chunk.capacity());
+      assertEquals(null, discarding.parse(chunk));
+    }
+    assertEquals(MESSAGES.get(2), discarding.parse(valid.duplicate()));
+
+    // Messages with too many frames or bytes in total
+    final ZMTPMessageParser frames = new ZMTPMessageParser(
+        true, ZMTPRevision.ZMTP_30, null, Integer.MAX_VALUE,
+        ZMTPLimits.builder().maxFrames(3).action(ZMTPLimits.Action.DISCARD).build());
+    assertEquals(MESSAGES.get(1), frames.parse(serialize(MESSAGES.get(0), MESSAGES.get(1))));
+    final ZMTPMessageParser size = new ZMTPMessageParser(
+        true, ZMTPRevision.ZMTP_30, null, Integer.MAX_VALUE,
+        ZMTPLimits.builder().maxMessageSize(100).action(ZMTPLimits.Action.DISCARD).build());
+    assertEquals(MESSAGES.get(2), size.parse(serialize(MESSAGES.get(0), MESSAGES.get(2))));
+  }
+
+  private static ChannelBuffer serialize(final ZMTPMessage... messages) {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    for (final ZMTPMessage message : messages) {
+      ZMTPUtils.writeMessage(message, buffer, true, ZMTPRevision.ZMTP_30);
+    }
+    return buffer;
+  }
+
+  @Test
+  public void commandSkipTest() {
+    final ZMTPMessage message = MESSAGES.get(1);
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeCommand(ZMTPFrame.create("command"), buffer);
+    ZMTPUtils.writeMessage(message, buffer, false, ZMTPRevision.ZMTP_30);
+
+    final ZMTPMessageParser parser = new ZMTPMessageParser(false, ZMTPRevision.ZMTP_30);
+    assertEquals(message, parser.parse(buffer));
+    assertEquals(0, buffer.readableBytes());
+  }
+
+  @Test
+  public void incompleteLengthTest() {
+    final ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(new byte[]{(byte) 0xFF, 0, 0});
+    assertEquals(-1, ZMTPUtils.decodeLength(buffer));
+    assertEquals(0, buffer.readerIndex());
+  }
+}
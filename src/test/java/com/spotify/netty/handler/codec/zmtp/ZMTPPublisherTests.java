@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static junit.framework.Assert.assertEquals;
+
+public class ZMTPPublisherTests {
+
+  @Test
+  public void publishTest() {
+    final ZMTPPublisher publisher = new ZMTPPublisher();
+    final DecoderEmbedder<Object> foo = connect(publisher);
+    final DecoderEmbedder<Object> all = connect(publisher);
+
+    // Subscription messages are consumed
+    subscribe(foo, 1, "fo");
+    subscribe(foo, 1, "foo");
+    subscribe(all, 1, "");
+    assertEquals(null, foo.poll());
+    assertEquals(null, all.poll());
+
+    // Subscribers with several matching prefixes get a message once
+    assertEquals(2, publisher.publish(message("foobar")));
+    assertEquals(encoded("foobar"), foo.poll());
+    assertEquals(null, foo.poll());
+    assertEquals(encoded("foobar"), all.poll());
+
+    assertEquals(1, publisher.publish(message("bar")));
+    assertEquals(null, foo.poll());
+    assertEquals(encoded("bar"), all.poll());
+
+    // Unsubscribing removes one subscription to the prefix
+    subscribe(foo, 0, "fo");
+    assertEquals(2, publisher.publish(message("foo")));
+    assertEquals(1, publisher.publish(message("fox")));
+    foo.poll();
+    assertEquals(null, foo.poll());
+
+    // Closed channels are unsubscribed
+    all.finish();
+    assertEquals(0, publisher.publish(message("bar")));
+  }
+
+  @Test
+  public void sparseChildrenTest() {
+    final ZMTPPublisher publisher = new ZMTPPublisher();
+    final DecoderEmbedder<Object> embedder = connect(publisher);
+
+    // Every byte value as a child of the same node, added out of order
+    for (int i = 0; i < 256; i++) {
+      subscribe(embedder, 1, new byte[]{'x', (byte) (i * 37)});
+    }
+    for (int i = 0; i < 256; i++) {
+      assertEquals(1, publisher.publish(message(new byte[]{'x', (byte) i, 'y'})));
+    }
+    assertEquals(0, publisher.publish(message(new byte[]{'x'})));
+
+    // Removing children keeps the others in place
+    for (int i = 0; i < 256; i += 2) {
+      subscribe(embedder, 0, new byte[]{'x', (byte) i});
+    }
+    for (int i = 0; i < 256; i++) {
+      assertEquals(i % 2, publisher.publish(message(new byte[]{'x', (byte) i})));
+    }
+  }
+
+  @Test
+  public void pooledTest() {
+    final ZMTPPublisher publisher = new ZMTPPublisher();
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral, "local".getBytes());
+    final List<ZMTPIncomingMessage> received = new ArrayList<ZMTPIncomingMessage>();
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        ZMTPFramingDecoder.builder(session).pooled(true).build(),
+        new SimpleChannelUpstreamHandler() {
+          @Override
+          public void messageReceived(final ChannelHandlerContext ctx, final MessageEvent e)
+              throws Exception {
+            received.add((ZMTPIncomingMessage) e.getMessage());
+            super.messageReceived(ctx, e);
+          }
+        },
+        publisher.newHandler(session));
+    handshake(embedder);
+
+    // Consumed subscription messages are released
+    subscribe(embedder, 1, "foo".getBytes());
+    assertEquals(1, received.size());
+    assertEquals(null, received.get(0).getMessage());
+    assertEquals(1, publisher.publish(message("foo".getBytes())));
+  }
+
+  private static ZMTPMessage message(final byte[] topic) {
+    return new ZMTPMessage(Collections.<ZMTPFrame>emptyList(),
+                           asList(ZMTPFrame.create(topic), ZMTPFrame.create("data")));
+  }
+
+  private static ZMTPMessage message(final String topic) {
+    return new ZMTPMessage(Collections.<ZMTPFrame>emptyList(),
+                           asList(ZMTPFrame.create(topic), ZMTPFrame.create("data")));
+  }
+
+  private static ChannelBuffer encoded(final String topic) {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(message(topic), buffer, false);
+    return buffer;
+  }
+
+  private static void subscribe(final DecoderEmbedder<Object> embedder, final int command,
+                                final String prefix) {
+    subscribe(embedder, command, prefix.getBytes());
+  }
+
+  private static void subscribe(final DecoderEmbedder<Object> embedder, final int command,
+                                final byte[] prefix) {
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    data.writeByte(command);
+    data.writeBytes(prefix);
+    final ChannelBuffer message = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeFrame(ZMTPFrame.wrap(data), message, false);
+    embedder.offer(message);
+  }
+
+  /**
+   * Connect a session to a publisher and complete the ZMTP/1.0 handshake.
+   */
+  private static DecoderEmbedder<Object> connect(final ZMTPPublisher publisher) {
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Neutral, "local".getBytes());
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        new ZMTPFramingDecoder(session), publisher.newHandler(session));
+    handshake(embedder);
+    return embedder;
+  }
+
+  private static void handshake(final DecoderEmbedder<Object> embedder) {
+    embedder.poll();
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeFrame(ZMTPFrame.create("remote"), data, false);
+    embedder.offer(data);
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Arrays.asList;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+public class ZMTPRouterTests {
+
+  @Test
+  public void routingTest() {
+    final ZMTPRouter router = new ZMTPRouter();
+    final ZMTPSession foo = new ZMTPSession(ZMTPConnectionType.Addressed, "router".getBytes());
+    final ZMTPSession bar = new ZMTPSession(ZMTPConnectionType.Addressed, "router".getBytes());
+    final DecoderEmbedder<Object> fooEmbedder = connect(router, foo, "foo");
+    final DecoderEmbedder<Object> barEmbedder = connect(router, bar, "bar");
+    assertEquals(2, router.size());
+    assertSame(foo, router.getSession(ZMTPIdentity.from("foo".getBytes())));
+
+    // Received messages get the identity of the peer prepended to the envelope
+    final ZMTPMessage request = new ZMTPMessage(
+        asList(ZMTPFrame.create("client")), asList(ZMTPFrame.create("request")));
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(request, data, true);
+    barEmbedder.offer(data);
+    final ZMTPIncomingMessage incoming = (ZMTPIncomingMessage) barEmbedder.poll();
+    assertSame(bar, incoming.getSession());
+    assertEquals(asList(ZMTPFrame.create("bar"), ZMTPFrame.create("client")),
+                 incoming.getMessage().getEnvelope());
+    assertEquals(request.getContent(), incoming.getMessage().getContent());
+
+    // Sent messages are routed by the first envelope frame, which is stripped in place
+    final ZMTPMessage reply = new ZMTPMessage(
+        incoming.getMessage().getEnvelope(), asList(ZMTPFrame.create("reply")));
+    assertNotNull(router.send(reply));
+    assertEquals(null, fooEmbedder.poll());
+    final Object written = barEmbedder.poll();
+    assertSame(reply, written);
+    assertEquals(new ZMTPMessage(asList(ZMTPFrame.create("client")), reply.getContent()),
+                 written);
+
+    // Messages to unknown and disconnected peers are not routed
+    final List<ZMTPFrame> content = asList(ZMTPFrame.create("reply"));
+    assertNull(router.send(new ZMTPMessage(asList(ZMTPFrame.create("baz")), content)));
+    barEmbedder.finish();
+    assertEquals(1, router.size());
+    assertNull(router.send(new ZMTPMessage(asList(ZMTPFrame.create("bar")), content)));
+  }
+
+  @Test
+  public void duplicateIdentityTest() {
+    final ZMTPRouter router = new ZMTPRouter();
+    final ZMTPSession first = new ZMTPSession(ZMTPConnectionType.Addressed, "router".getBytes());
+    final ZMTPSession second = new ZMTPSession(ZMTPConnectionType.Addressed, "router".getBytes());
+    connect(router, first, "foo");
+
+    // The second peer is disconnected, leaving the first one routable
+    final AtomicBoolean closed = new AtomicBoolean();
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        new ZMTPFramingDecoder(second), router.newHandler(second));
+    embedder.getPipeline().addFirst("close", new SimpleChannelDownstreamHandler() {
+      @Override
+      public void closeRequested(final ChannelHandlerContext ctx, final ChannelStateEvent e) {
+        closed.set(true);
+      }
+    });
+    handshake(embedder, "foo");
+    assertTrue(closed.get());
+    assertSame(first, router.getSession(ZMTPIdentity.from("foo".getBytes())));
+  }
+
+  @Test
+  public void pipelinedHandshakeTest() {
+    final ZMTPRouter router = new ZMTPRouter();
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Addressed, "router".getBytes());
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        ZMTPFramingDecoder.builder(session).pipelineHandshake(true).build(),
+        router.newHandler(session));
+    assertEquals(0, router.size());
+
+    // The peer is routable as soon as the handshake is complete, without sending anything
+    handshake(embedder, "foo");
+    assertEquals(1, router.size());
+    assertNotNull(router.send(new ZMTPMessage(asList(ZMTPFrame.create("foo")),
+                                              asList(ZMTPFrame.create("reply")))));
+    assertEquals(ZMTPMessage.fromContent(ZMTPFrame.create("reply")), embedder.poll());
+  }
+
+  @Test
+  public void pooledTest() {
+    final ZMTPRouter router = new ZMTPRouter();
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Addressed, "router".getBytes());
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        ZMTPFramingDecoder.builder(session).pooled(true).build(), router.newHandler(session));
+    handshake(embedder, "foo");
+
+    final ZMTPMessage request = new ZMTPMessage(
+        asList(ZMTPFrame.create("client")), asList(ZMTPFrame.create("request")));
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(request, data, true);
+
+    // The routed message is the pooled one, so releasing it returns it to the pool
+    embedder.offer(data.duplicate());
+    final ZMTPIncomingMessage first = (ZMTPIncomingMessage) embedder.poll();
+    final ZMTPMessage message = first.getMessage();
+    assertEquals(asList(ZMTPFrame.create("foo"), ZMTPFrame.create("client")),
+                 message.getEnvelope());
+    first.release();
+
+    embedder.offer(data.duplicate());
+    final ZMTPIncomingMessage second = (ZMTPIncomingMessage) embedder.poll();
+    assertSame(first, second);
+    assertSame(message, second.getMessage());
+    assertEquals(asList(ZMTPFrame.create("foo"), ZMTPFrame.create("client")),
+                 second.getMessage().getEnvelope());
+  }
+
+  /**
+   * Connect a session to a router and complete the ZMTP/1.0 handshake with a remote identity.
+   */
+  private static DecoderEmbedder<Object> connect(final ZMTPRouter router,
+                                                 final ZMTPSession session,
+                                                 final String identity) {
+    final DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(
+        new ZMTPFramingDecoder(session), router.newHandler(session));
+    handshake(embedder, identity);
+    return embedder;
+  }
+
+  private static void handshake(final DecoderEmbedder<Object> embedder, final String identity) {
+    embedder.poll();
+    final ChannelBuffer data = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeFrame(ZMTPFrame.create(identity), data, false);
+    embedder.offer(data);
+  }
+}
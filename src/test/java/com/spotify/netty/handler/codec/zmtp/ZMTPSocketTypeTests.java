@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.spotify.netty.handler.codec.zmtp;
+
+import org.junit.Test;
+
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.DEALER;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.PUB;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.REP;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.REQ;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.ROUTER;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.STREAM;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.SUB;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.UNKNOWN;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.XPUB;
+import static com.spotify.netty.handler.codec.zmtp.ZMTPSocketType.XSUB;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+public class ZMTPSocketTypeTests {
+
+  @Test
+  public void fromByteTest() {
+    for (final ZMTPSocketType type : ZMTPSocketType.values()) {
+      if (type != UNKNOWN) {
+        assertEquals(type, ZMTPSocketType.fromByte(type.getEncodedValue()));
+      }
+    }
+    assertEquals(XSUB, ZMTPSocketType.fromByte((byte) 0x0A));
+    assertEquals(UNKNOWN, ZMTPSocketType.fromByte((byte) 0x0C));
+    assertEquals(UNKNOWN, ZMTPSocketType.fromByte((byte) 0xFF));
+  }
+
+  @Test
+  public void compatibilityTest() {
+    // Compatibility is symmetric
+    for (final ZMTPSocketType local : ZMTPSocketType.values()) {
+      for (final ZMTPSocketType remote : ZMTPSocketType.values()) {
+        assertEquals(local + " " + remote,
+                     local.isCompatibleWith(remote), remote.isCompatibleWith(local));
+      }
+    }
+
+    assertTrue(REQ.isCompatibleWith(REP));
+    assertTrue(REQ.isCompatibleWith(ROUTER));
+    assertFalse(REQ.isCompatibleWith(REQ));
+    assertFalse(REQ.isCompatibleWith(DEALER));
+    assertTrue(DEALER.isCompatibleWith(DEALER));
+    assertTrue(XPUB.isCompatibleWith(SUB));
+    assertTrue(XSUB.isCompatibleWith(PUB));
+    assertFalse(XPUB.isCompatibleWith(PUB));
+    assertFalse(STREAM.isCompatibleWith(STREAM));
+    assertFalse(UNKNOWN.isCompatibleWith(UNKNOWN));
+  }
+}
@@ -27,23 +27,42 @@ import static java.lang.Boolean.FALSE;
 import static java.lang.Boolean.TRUE;
 import static java.util.Arrays.asList;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 
 public class ZMTPUtilsTests {
 
   @Test
   public void frameSizeTest() {
-    for (boolean more : asList(TRUE, FALSE)) {
-      for (int size = 0; size < 1024; size++) {
-        final ZMTPFrame frame = ZMTPFrame.create(new byte[size]);
-        int estimatedSize = ZMTPUtils.frameSize(frame);
-        final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
-        ZMTPUtils.writeFrame(frame, buffer, more);
-        int writtenSize = buffer.readableBytes();
-        assertEquals(writtenSize, estimatedSize);
+    for (ZMTPRevision revision : asList(ZMTPRevision.ZMTP_10, ZMTPRevision.ZMTP_30)) {
+      for (boolean more : asList(TRUE, FALSE)) {
+        for (int size = 0; size < 1024; size++) {
+          final ZMTPFrame frame = ZMTPFrame.create(new byte[size]);
+          int estimatedSize = ZMTPUtils.frameSize(frame, revision);
+          final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+          ZMTPUtils.writeFrame(frame, buffer, more, revision);
+          int writtenSize = buffer.readableBytes();
+          assertEquals(writtenSize, estimatedSize);
+        }
       }
     }
   }
 
+  @Test
+  public void zmtp30FrameHeaderTest() {
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+
+    ZMTPUtils.writeFrameHeader(ZMTPFrame.create(new byte[255]), buffer, true, ZMTPRevision.ZMTP_30);
+    assertEquals(ChannelBuffers.wrappedBuffer(new byte[]{0x01, (byte) 0xFF}), buffer);
+
+    buffer.clear();
+    ZMTPUtils.writeFrameHeader(ZMTPFrame.create(new byte[256]), buffer, false, ZMTPRevision.ZMTP_30);
+    assertEquals(ChannelBuffers.wrappedBuffer(new byte[]{0x02, 0, 0, 0, 0, 0, 0, 1, 0}), buffer);
+
+    buffer.clear();
+    ZMTPUtils.writeCommand(ZMTPFrame.create("cmd"), buffer);
+    assertEquals(ChannelBuffers.wrappedBuffer(new byte[]{0x04, 3, 'c', 'm', 'd'}), buffer);
+  }
+
   @Test
   public void messageSizeTest() {
     final List<ZMTPFrame> EMPTY = new ArrayList<ZMTPFrame>();
@@ -75,4 +94,81 @@ public class ZMTPUtilsTests {
     }
 
   }
+
+  @Test
+  public void slicedFrameRoundTripTest() {
+    final ZMTPMessage message = new ZMTPMessage(
+        asList(ZMTPFrame.create("envelope")),
+        asList(ZMTPFrame.create("foo"), ZMTPFrame.create(new byte[1024])));
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(message, buffer, true);
+    final ChannelBuffer written = buffer.duplicate();
+
+    final ZMTPMessage parsed = new ZMTPMessageParser(true).parse(buffer);
+    assertEquals(message, parsed);
+    assertEquals(ZMTPUtils.messageSize(message, true), ZMTPUtils.messageSize(parsed, true));
+
+    final ChannelBuffer rewritten = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(parsed, rewritten, true);
+    assertEquals(written, rewritten);
+  }
+
+  @Test
+  public void frameEqualityTest() {
+    final ZMTPFrame array = ZMTPFrame.create("foobar");
+    final ZMTPFrame wrapped = ZMTPFrame.wrap(ChannelBuffers.copiedBuffer(array.getData()));
+    final ZMTPFrame sliced = ZMTPFrame.wrap(ChannelBuffers.wrappedBuffer(array.getData()));
+    assertEquals(array, wrapped);
+    assertEquals(wrapped, array);
+    assertEquals(wrapped, sliced);
+    assertEquals(array.hashCode(), wrapped.hashCode());
+    assertEquals(wrapped.hashCode(), sliced.hashCode());
+    assertEquals(ZMTPFrame.create(), ZMTPFrame.create());
+    assertFalse(array.equals(ZMTPFrame.create("foobaz")));
+    assertFalse(wrapped.equals(ZMTPFrame.create("foo")));
+    assertFalse(ZMTPFrame.create().equals(ZMTPFrame.create(new byte[0])));
+    assertEquals(array.toString(), wrapped.toString());
+  }
+
+  @Test
+  public void messageListsTest() {
+    final ZMTPMessage message = ZMTPMessage.fromContent(ZMTPFrame.create("foo"));
+
+    // Changes to the lists are reflected in the message
+    final List<ZMTPFrame> envelope = message.getEnvelope();
+    envelope.add(ZMTPFrame.create("b"));
+    envelope.add(0, ZMTPFrame.create("a"));
+    message.getContent().add(ZMTPFrame.create("bar"));
+    message.getContent().set(0, ZMTPFrame.create("baz"));
+    final ZMTPMessage expected = new ZMTPMessage(
+        asList(ZMTPFrame.create("a"), ZMTPFrame.create("b")),
+        asList(ZMTPFrame.create("baz"), ZMTPFrame.create("bar")));
+    assertEquals(expected, message);
+    assertEquals(expected.hashCode(), message.hashCode());
+    assertEquals(ZMTPUtils.messageSize(expected, true), ZMTPUtils.messageSize(message, true));
+
+    envelope.remove(0);
+    message.getContent().clear();
+    assertEquals(new ZMTPMessage(asList(ZMTPFrame.create("b")), new ArrayList<ZMTPFrame>()),
+                 message);
+    assertEquals(message.getEnvelope().hashCode() + 31 * message.getContent().hashCode(),
+                 message.hashCode());
+  }
+
+  @Test
+  public void contentOnlyMessageTest() {
+    final ZMTPMessage message = ZMTPMessage.fromContent(ZMTPFrame.create("foo"));
+    final ZMTPMessage listMessage = new ZMTPMessage(new ArrayList<ZMTPFrame>(),
+                                                    asList(ZMTPFrame.create("foo")));
+    assertEquals(listMessage, message);
+    assertEquals(listMessage.hashCode(), message.hashCode());
+    assertEquals(0, message.getEnvelope().size());
+    assertEquals(asList(ZMTPFrame.create("foo")), message.getContent());
+
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    ZMTPUtils.writeMessage(message, buffer, false, ZMTPRevision.ZMTP_30);
+    assertEquals(ZMTPUtils.messageSize(message, false, ZMTPRevision.ZMTP_30),
+                 buffer.readableBytes());
+    assertEquals(message, new ZMTPMessageParser(false, ZMTPRevision.ZMTP_30).parse(buffer));
+  }
 }
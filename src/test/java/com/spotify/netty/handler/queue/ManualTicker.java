@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2012-2013 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package com.spotify.netty.handler.queue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A time source for write batchers that only advances when told to.
+ */
+public class ManualTicker implements AutoFlushingWriteBatcher.Ticker {
+
+  private long nanos;
+
+  @Override
+  public long nanoTime() {
+    return nanos;
+  }
+
+  public void advance(final long duration, final TimeUnit unit) {
+    nanos += unit.toNanos(duration);
+  }
+
+  public AutoFlushingWriteBatcher.Builder install(final AutoFlushingWriteBatcher.Builder builder) {
+    return builder.ticker(this);
+  }
+}
@@ -16,13 +16,17 @@
 
 package com.spotify.netty.zmtp;
 
+import com.spotify.netty.handler.codec.zmtp.ZMTPConnectionType;
 import com.spotify.netty.handler.codec.zmtp.ZMTPFrame;
+import com.spotify.netty.handler.codec.zmtp.ZMTPFramingEncoder;
 import com.spotify.netty.handler.codec.zmtp.ZMTPMessage;
 import com.spotify.netty.handler.codec.zmtp.ZMTPMessageParser;
+import com.spotify.netty.handler.codec.zmtp.ZMTPSession;
 import com.spotify.netty.handler.codec.zmtp.ZMTPUtils;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -56,4 +60,49 @@ public class Benchmark {
     }
     System.out.println(sum);
   }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkCopyEncoderSmallFrames() {
+    benchmarkEncoder(false, 40);
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkWrappingEncoderSmallFrames() {
+    benchmarkEncoder(true, 40);
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkCopyEncoderLargeFrames() {
+    benchmarkEncoder(false, 64 * 1024);
+  }
+
+  @Ignore("this is a benchmark")
+  @Test
+  public void benchmarkWrappingEncoderLargeFrames() {
+    benchmarkEncoder(true, 64 * 1024);
+  }
+
+  private void benchmarkEncoder(final boolean wrapFrames, final int frameSize) {
+    final ProgressMeter meter = new ProgressMeter("messages");
+    final ZMTPMessage message = new ZMTPMessage(
+        asList(ZMTPFrame.create("first identity frame"),
+               ZMTPFrame.create("second identity frame")),
+        asList(ZMTPFrame.create(new byte[frameSize]),
+               ZMTPFrame.create(new byte[frameSize])));
+    final ZMTPSession session = new ZMTPSession(ZMTPConnectionType.Addressed);
+    final EncoderEmbedder<ChannelBuffer> embedder =
+        new EncoderEmbedder<ChannelBuffer>(new ZMTPFramingEncoder(session, wrapFrames));
+    long sum = 0;
+    for (long i = 0; i < 1000000; i++) {
+      for (long j = 0; j < 1000; j++) {
+        embedder.offer(message);
+        sum += embedder.poll().readableBytes();
+      }
+      meter.inc(1000, 0);
+    }
+    System.out.println(sum);
+  }
 }